@@ -0,0 +1,83 @@
+package com.michaelpardo.java.io;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class LogStoreTest extends TestCase {
+	private File mFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		mFile = File.createTempFile("LogStoreTest", ".log");
+		mFile.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		new File(mFile.getPath() + ".tmp").delete();
+	}
+
+	public void testWriteClearCompactWriteReopen() throws IOException {
+		LogStore store = new LogStore(mFile);
+		store.write(Collections.singletonMap("a", 1), false, true);
+		store.write(Collections.<String, Object> emptyMap(), true, true);
+		store.compact();
+
+		final Map<String, Object> changes = new HashMap<String, Object>();
+		changes.put("b", 42);
+		changes.put("c", "hello");
+		store.write(changes, false, true);
+		store.close();
+
+		store = new LogStore(mFile);
+		try {
+			assertEquals(changes, store.getAll());
+		}
+		finally {
+			store.close();
+		}
+	}
+
+	public void testCompactKeepsLiveEntries() throws IOException {
+		LogStore store = new LogStore(mFile);
+		for (int i = 0; i < 100; i++) {
+			store.write(Collections.singletonMap("key", i), false, false);
+		}
+		store.write(Collections.singletonMap("other", "value"), false, true);
+		store.compact();
+		store.write(Collections.singletonMap("key", -1), false, true);
+		store.close();
+
+		store = new LogStore(mFile);
+		try {
+			assertEquals(2, store.size());
+			assertEquals(-1, store.get("key"));
+			assertEquals("value", store.get("other"));
+		}
+		finally {
+			store.close();
+		}
+	}
+}
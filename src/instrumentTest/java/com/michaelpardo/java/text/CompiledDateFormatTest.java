@@ -0,0 +1,68 @@
+package com.michaelpardo.java.text;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+public class CompiledDateFormatTest extends TestCase {
+	private static final long MILLIS = 1351756800000L;
+	private static final TimeZone LOS_ANGELES = TimeZone.getTimeZone("America/Los_Angeles");
+
+	public void testPlatformSpecificPatternsAreNotCompiled() {
+		assertNotCompiled("yyyy-MM-dd'T'HH:mm:ssZZZZZ");
+		assertNotCompiled("yyyy-MM-dd'T'HH:mm:ssZZZZ");
+		assertNotCompiled("MMMMM d");
+		assertNotCompiled("EEEEE");
+	}
+
+	public void testCommonPatternsAreCompiled() {
+		assertCompiled("yyyy-MM-dd'T'HH:mm:ssZ");
+		assertCompiled("yyyy-MM-dd'T'HH:mm:ssZZZ");
+		assertCompiled("EEEE, MMMM d");
+		assertCompiled("EEE, MMM d");
+	}
+
+	public void testPlatformSpecificPatternsMatchSimpleDateFormat() {
+		final String[] patterns = { "yyyy-MM-dd'T'HH:mm:ssZZZZZ", "yyyy-MM-dd'T'HH:mm:ssZZZZ", "MMMMM d", "EEEEE" };
+		for (String pattern : patterns) {
+			final SimpleDateFormat expected = new SimpleDateFormat(pattern, Locale.US);
+			expected.setTimeZone(LOS_ANGELES);
+
+			final ThreadSafeSimpleDateFormat format = new ThreadSafeSimpleDateFormat(pattern, Locale.US, LOS_ANGELES);
+			assertEquals(pattern, expected.format(new Date(MILLIS)), format.format(MILLIS));
+		}
+	}
+
+	private static void assertCompiled(String pattern) {
+		assertNotNull(pattern, compile(pattern));
+	}
+
+	private static void assertNotCompiled(String pattern) {
+		assertNull(pattern, compile(pattern));
+	}
+
+	private static CompiledDateFormat compile(String pattern) {
+		final SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+		format.setTimeZone(LOS_ANGELES);
+		return CompiledDateFormat.compile(format, Locale.US);
+	}
+}
@@ -0,0 +1,49 @@
+package com.michaelpardo.java.text;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+public class MultiDateParserTest extends TestCase {
+	private static final String ISO_PATTERN = "yyyy-MM-dd'T'HH:mm:ssZ";
+
+	public void testOffsetSignDiffersFromParserZone() {
+		final MultiDateParser utcParser = new MultiDateParser(Arrays.asList("yyyy-MM-dd", ISO_PATTERN), Locale.US,
+				TimeZone.getTimeZone("UTC"));
+
+		assertEquals(1577854800000L, utcParser.parseMillis("2020-01-01T00:00:00-0500", -1));
+		assertEquals(1577818800000L, utcParser.parseMillis("2020-01-01T00:00:00+0500", -1));
+		assertEquals(ISO_PATTERN, utcParser.detectPattern("2020-01-01T00:00:00-0500"));
+
+		final MultiDateParser newYorkParser = new MultiDateParser(Arrays.asList(ISO_PATTERN), Locale.US,
+				TimeZone.getTimeZone("America/New_York"));
+
+		assertEquals(1577836800000L, newYorkParser.parseMillis("2020-01-01T00:00:00+0000", -1));
+	}
+
+	public void testShapeMismatchReturnsNull() {
+		final MultiDateParser parser = new MultiDateParser(Arrays.asList(ISO_PATTERN), Locale.US,
+				TimeZone.getTimeZone("UTC"));
+
+		assertNull(parser.parse("2020/01/01"));
+		assertEquals(-1, parser.parseMillis("not a date", -1));
+	}
+}
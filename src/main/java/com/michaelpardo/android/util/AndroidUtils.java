@@ -1,150 +1,499 @@
-package com.michaelpardo.android.util;
-
-/*
- * Copyright (C) 2010 Michael Pardo
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-import android.content.Context;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.Signature;
-import android.os.Build;
-
-import com.michaelpardo.android.R;
-
-public class AndroidUtils {
-	private AndroidUtils() {
-	}
-
-	public static String getAppName(Context context) {
-		return getAppName(context, null);
-	}
-
-	public static String getAppName(Context context, String packageName) {
-		String applicationName;
-
-		if (packageName == null) {
-			packageName = context.getPackageName();
-		}
-
-		try {
-			PackageManager packageManager = context.getPackageManager();
-			PackageInfo packageInfo = packageManager.getPackageInfo(packageName, 0);
-			applicationName = context.getString(packageInfo.applicationInfo.labelRes);
-		}
-		catch (Exception e) {
-			Log.w("Failed to get version number.", e);
-			applicationName = "";
-		}
-
-		return applicationName;
-	}
-
-	public static String getAppVersionNumber(Context context) {
-		return getAppVersionNumber(context, null);
-	}
-
-	public static String getAppVersionNumber(Context context, String packageName) {
-		String versionName;
-
-		if (packageName == null) {
-			packageName = context.getPackageName();
-		}
-
-		try {
-			PackageManager packageManager = context.getPackageManager();
-			PackageInfo packageInfo = packageManager.getPackageInfo(packageName, 0);
-			versionName = packageInfo.versionName;
-		}
-		catch (Exception e) {
-			Log.w("Failed to get version number.", e);
-			versionName = "";
-		}
-
-		return versionName;
-	}
-
-	public static String getAppVersionCode(Context context) {
-		return getAppVersionCode(context, null);
-	}
-
-	public static String getAppVersionCode(Context context, String packageName) {
-		String versionCode;
-
-		if (packageName == null) {
-			packageName = context.getPackageName();
-		}
-
-		try {
-			PackageManager packageManager = context.getPackageManager();
-			PackageInfo packageInfo = packageManager.getPackageInfo(packageName, 0);
-			versionCode = Integer.toString(packageInfo.versionCode);
-		}
-		catch (Exception e) {
-			Log.w("Failed to get version code.", e);
-			versionCode = "";
-		}
-
-		return versionCode;
-	}
-
-	public static int getSdkVersion() {
-		try {
-			return Build.VERSION.class.getField("SDK_INT").getInt(null);
-		}
-		catch (Exception e) {
-			return 3;
-		}
-	}
-
-	@Deprecated
-	/*
-	 * This method is deprecated. Use BuildConfig.DEBUG instead
-	 */
-	public static boolean isRelease(Context context) {
-		final String releaseSignatureString = context.getString(R.string.release_signature);
-		if (releaseSignatureString == null || releaseSignatureString.length() == 0) {
-			throw new RuntimeException("Release signature string is null or missing.");
-		}
-
-		final Signature releaseSignature = new Signature(context.getString(R.string.release_signature));
-
-		try {
-			PackageManager pm = context.getPackageManager();
-			PackageInfo pi = pm.getPackageInfo(context.getPackageName(), PackageManager.GET_SIGNATURES);
-			for (Signature sig : pi.signatures) {
-				if (sig.equals(releaseSignature)) {
-					Log.v("Determined that this is a RELEASE build.");
-					return true;
-				}
-			}
-		}
-		catch (Exception e) {
-			Log.w("Exception thrown when detecting if app is signed by a release keystore, assuming this is a release build.",
-					e);
-
-			// Return true if we can't figure it out
-			return true;
-		}
-
-		Log.v("Determined that this is a DEBUG build.");
-
-		return false;
-	}
-
-	public static boolean isEmulator() {
-		return Build.MODEL.equals("sdk") || Build.MODEL.equals("google_sdk");
-	}
-}
+package com.michaelpardo.android.util;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.net.Uri;
+import android.os.Build;
+
+import com.michaelpardo.android.R;
+
+public class AndroidUtils {
+	private AndroidUtils() {
+	}
+
+	public static String getAppName(Context context) {
+		return getAppName(context, null);
+	}
+
+	public static String getAppName(Context context, String packageName) {
+		final PackageMetadata metadata = getPackageMetadata(context, packageName);
+		return metadata != null ? metadata.getLabel() : "";
+	}
+
+	public static String getAppVersionNumber(Context context) {
+		return getAppVersionNumber(context, null);
+	}
+
+	public static String getAppVersionNumber(Context context, String packageName) {
+		final PackageMetadata metadata = getPackageMetadata(context, packageName);
+		return metadata != null ? metadata.getVersionName() : "";
+	}
+
+	public static String getAppVersionCode(Context context) {
+		return getAppVersionCode(context, null);
+	}
+
+	public static String getAppVersionCode(Context context, String packageName) {
+		final PackageMetadata metadata = getPackageMetadata(context, packageName);
+		return metadata != null ? Integer.toString(metadata.getVersionCode()) : "";
+	}
+
+	/**
+	 * Returns the label and version of a package, or of this app if the package name is null.
+	 * The PackageManager is queried once per package; the result is kept until the package is
+	 * replaced, changed or removed, or the locale changes. Returns null if the package isn't
+	 * installed or can't be read.
+	 */
+	public static PackageMetadata getPackageMetadata(Context context, String packageName) {
+		if (packageName == null) {
+			packageName = context.getPackageName();
+		}
+
+		PackageMetadata metadata = METADATA.get(packageName);
+		if (metadata != null) {
+			return metadata;
+		}
+
+		registerMetadataReceiver(context);
+
+		final int generation = METADATA_GENERATION.get();
+
+		if (sPersistMetadata) {
+			metadata = loadMetadata(context, packageName);
+		}
+
+		if (metadata == null) {
+			try {
+				final PackageManager packageManager = context.getPackageManager();
+				metadata = PackageMetadata.create(packageManager.getPackageInfo(packageName, 0), packageManager);
+			}
+			catch (Exception e) {
+				Log.w("Failed to get package info for " + packageName + ".", e);
+				return null;
+			}
+
+			if (sPersistMetadata) {
+				saveMetadata(context, Collections.singletonList(metadata));
+			}
+		}
+
+		// Don't cache metadata that was invalidated while it was being built.
+		if (generation == METADATA_GENERATION.get()) {
+			METADATA.put(packageName, metadata);
+		}
+
+		return metadata;
+	}
+
+	/**
+	 * Returns the metadata of the installed packages among the given names, keyed by package
+	 * name. Packages that aren't cached are found with a single getInstalledPackages call and
+	 * their labels are loaded on a pool of worker threads. Packages that aren't installed are
+	 * left out.
+	 */
+	public static Map<String, PackageMetadata> getPackageMetadata(Context context, Collection<String> packageNames) {
+		final Map<String, PackageMetadata> result = new HashMap<String, PackageMetadata>(
+				packageNames.size() * 4 / 3 + 1);
+		final Set<String> missing = new HashSet<String>();
+
+		// Before anything is cached, so the cache is cleared when packages or the locale change.
+		registerMetadataReceiver(context);
+
+		final int generation = METADATA_GENERATION.get();
+
+		for (String packageName : packageNames) {
+			PackageMetadata metadata = METADATA.get(packageName);
+			if (metadata == null && sPersistMetadata) {
+				metadata = loadMetadata(context, packageName);
+				if (metadata != null && generation == METADATA_GENERATION.get()) {
+					METADATA.put(packageName, metadata);
+				}
+			}
+
+			if (metadata != null) {
+				result.put(packageName, metadata);
+			}
+			else {
+				missing.add(packageName);
+			}
+		}
+
+		if (missing.isEmpty()) {
+			return result;
+		}
+
+		final PackageManager packageManager = context.getPackageManager();
+		final List<PackageMetadata> created = createMetadata(getPackageInfos(packageManager, missing),
+				packageManager);
+
+		if (sPersistMetadata && !created.isEmpty()) {
+			saveMetadata(context, created);
+		}
+
+		final boolean current = generation == METADATA_GENERATION.get();
+		for (PackageMetadata metadata : created) {
+			result.put(metadata.getPackageName(), metadata);
+			if (current) {
+				METADATA.put(metadata.getPackageName(), metadata);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Also keeps package metadata in a preferences file, so it survives process restarts. A
+	 * persisted entry is used as long as the package's apk has the same modification time.
+	 */
+	public static void setPersistPackageMetadata(boolean persist) {
+		sPersistMetadata = persist;
+	}
+
+	public static int getSdkVersion() {
+		try {
+			return Build.VERSION.class.getField("SDK_INT").getInt(null);
+		}
+		catch (Exception e) {
+			return 3;
+		}
+	}
+
+	@Deprecated
+	/*
+	 * This method is deprecated. Use BuildConfig.DEBUG instead
+	 */
+	public static boolean isRelease(Context context) {
+		final Boolean release = sRelease;
+		if (release != null) {
+			return release;
+		}
+
+		final String releaseSignatureString = context.getString(R.string.release_signature);
+		if (releaseSignatureString == null || releaseSignatureString.length() == 0) {
+			throw new RuntimeException("Release signature string is null or missing.");
+		}
+
+		sRelease = checkRelease(context, releaseSignatureString);
+
+		return sRelease;
+	}
+
+	public static boolean isEmulator() {
+		return Build.MODEL.equals("sdk") || Build.MODEL.equals("google_sdk");
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+	// Release signature check
+
+	// The signing certificate can't change while the process runs, so the check is done once.
+	private static volatile Boolean sRelease;
+
+	private static boolean checkRelease(Context context, String releaseSignatureString) {
+		final Signature releaseSignature = new Signature(releaseSignatureString);
+
+		try {
+			final byte[] releaseDigest = digest(releaseSignature);
+
+			PackageManager pm = context.getPackageManager();
+			PackageInfo pi = pm.getPackageInfo(context.getPackageName(), PackageManager.GET_SIGNATURES);
+			for (Signature sig : pi.signatures) {
+				if (MessageDigest.isEqual(digest(sig), releaseDigest)) {
+					Log.v("Determined that this is a RELEASE build.");
+					return true;
+				}
+			}
+		}
+		catch (Exception e) {
+			Log.w("Exception thrown when detecting if app is signed by a release keystore, assuming this is a release build.",
+					e);
+
+			// Return true if we can't figure it out
+			return true;
+		}
+
+		Log.v("Determined that this is a DEBUG build.");
+
+		return false;
+	}
+
+	private static byte[] digest(Signature signature) throws NoSuchAlgorithmException {
+		return MessageDigest.getInstance("SHA-256").digest(signature.toByteArray());
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+	// Package metadata cache
+
+	private static final String METADATA_PREFERENCES = "com.michaelpardo.android.package_metadata";
+
+	private static final String KEY_LABEL = ".label";
+	private static final String KEY_VERSION_NAME = ".version_name";
+	private static final String KEY_VERSION_CODE = ".version_code";
+	private static final String KEY_LOCALE = ".locale";
+	private static final String KEY_SOURCE_DIR = ".source_dir";
+	private static final String KEY_SOURCE_MODIFIED = ".source_modified";
+
+	private static final Map<String, PackageMetadata> METADATA = new ConcurrentHashMap<String, PackageMetadata>();
+
+	// Incremented whenever cached metadata is invalidated.
+	private static final AtomicInteger METADATA_GENERATION = new AtomicInteger();
+
+	private static volatile boolean sPersistMetadata;
+	private static boolean sMetadataReceiverRegistered;
+
+	private static final int MIN_LABEL_CHUNK_SIZE = 8;
+	private static ExecutorService sExecutor;
+
+	private static final BroadcastReceiver METADATA_RECEIVER = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			// Every label may change. Persisted entries record their locale and are skipped.
+			if (Intent.ACTION_LOCALE_CHANGED.equals(intent.getAction())) {
+				METADATA_GENERATION.incrementAndGet();
+				METADATA.clear();
+				return;
+			}
+
+			final Uri data = intent.getData();
+			if (data == null) {
+				return;
+			}
+
+			final String packageName = data.getSchemeSpecificPart();
+
+			METADATA_GENERATION.incrementAndGet();
+			METADATA.remove(packageName);
+
+			if (sPersistMetadata) {
+				SettingUtils.commitOrApply(context.getSharedPreferences(METADATA_PREFERENCES, Context.MODE_PRIVATE)
+						.edit().remove(packageName + KEY_LABEL).remove(packageName + KEY_VERSION_NAME)
+						.remove(packageName + KEY_VERSION_CODE).remove(packageName + KEY_LOCALE)
+						.remove(packageName + KEY_SOURCE_DIR).remove(packageName + KEY_SOURCE_MODIFIED));
+			}
+		}
+	};
+
+	private static synchronized void registerMetadataReceiver(Context context) {
+		if (sMetadataReceiverRegistered) {
+			return;
+		}
+
+		final IntentFilter filter = new IntentFilter();
+		filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+		filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+		filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+		filter.addDataScheme("package");
+
+		final Context applicationContext = context.getApplicationContext();
+		final Context receiverContext = applicationContext != null ? applicationContext : context;
+		receiverContext.registerReceiver(METADATA_RECEIVER, filter);
+
+		// Has no data, so it doesn't match the package filter.
+		receiverContext.registerReceiver(METADATA_RECEIVER, new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+
+		sMetadataReceiverRegistered = true;
+	}
+
+	private static PackageMetadata loadMetadata(Context context, String packageName) {
+		final SharedPreferences prefs = context.getSharedPreferences(METADATA_PREFERENCES, Context.MODE_PRIVATE);
+
+		final String sourceDir = prefs.getString(packageName + KEY_SOURCE_DIR, null);
+		if (sourceDir == null) {
+			return null;
+		}
+
+		// An updated or removed package has a different or missing apk.
+		final long sourceModified = prefs.getLong(packageName + KEY_SOURCE_MODIFIED, 0);
+		if (sourceModified == 0 || new File(sourceDir).lastModified() != sourceModified) {
+			return null;
+		}
+
+		// Labels are localized.
+		final String locale = Locale.getDefault().toString();
+		if (!locale.equals(prefs.getString(packageName + KEY_LOCALE, null))) {
+			return null;
+		}
+
+		return new PackageMetadata(packageName, prefs.getString(packageName + KEY_LABEL, ""), prefs.getString(
+				packageName + KEY_VERSION_NAME, ""), prefs.getInt(packageName + KEY_VERSION_CODE, 0), locale,
+				sourceDir, sourceModified);
+	}
+
+	private static void saveMetadata(Context context, List<PackageMetadata> metadatas) {
+		final SharedPreferences.Editor editor = context.getSharedPreferences(METADATA_PREFERENCES,
+				Context.MODE_PRIVATE).edit();
+
+		for (PackageMetadata metadata : metadatas) {
+			final String packageName = metadata.getPackageName();
+			editor.putString(packageName + KEY_LABEL, metadata.getLabel());
+			editor.putString(packageName + KEY_VERSION_NAME, metadata.getVersionName());
+			editor.putInt(packageName + KEY_VERSION_CODE, metadata.getVersionCode());
+			editor.putString(packageName + KEY_LOCALE, metadata.getLocale());
+			editor.putString(packageName + KEY_SOURCE_DIR, metadata.getSourceDir());
+			editor.putLong(packageName + KEY_SOURCE_MODIFIED, metadata.getSourceModified());
+		}
+
+		SettingUtils.commitOrApply(editor);
+	}
+
+	/**
+	 * Finds the installed packages among the given names with a single getInstalledPackages call.
+	 * If that fails, as it can on devices with many packages, each one is looked up separately.
+	 */
+	private static List<PackageInfo> getPackageInfos(PackageManager packageManager, Set<String> packageNames) {
+		final List<PackageInfo> packageInfos = new ArrayList<PackageInfo>(packageNames.size());
+
+		try {
+			for (PackageInfo packageInfo : packageManager.getInstalledPackages(0)) {
+				if (packageNames.contains(packageInfo.packageName)) {
+					packageInfos.add(packageInfo);
+				}
+			}
+
+			return packageInfos;
+		}
+		catch (Exception e) {
+			Log.w("Failed to get installed packages.", e);
+			packageInfos.clear();
+		}
+
+		for (String packageName : packageNames) {
+			try {
+				packageInfos.add(packageManager.getPackageInfo(packageName, 0));
+			}
+			catch (Exception e) {
+				Log.w("Failed to get package info for " + packageName + ".", e);
+			}
+		}
+
+		return packageInfos;
+	}
+
+	/**
+	 * Loads labels in chunks on the worker pool; small lists are done on the calling thread.
+	 */
+	private static List<PackageMetadata> createMetadata(final List<PackageInfo> packageInfos,
+			final PackageManager packageManager) {
+
+		final int size = packageInfos.size();
+		final int chunkCount = Math.min(Runtime.getRuntime().availableProcessors(), size / MIN_LABEL_CHUNK_SIZE);
+
+		if (chunkCount <= 1) {
+			final List<PackageMetadata> metadatas = new ArrayList<PackageMetadata>(size);
+			createMetadata(packageInfos, packageManager, metadatas);
+			return metadatas;
+		}
+
+		final List<Future<List<PackageMetadata>>> futures = new ArrayList<Future<List<PackageMetadata>>>(chunkCount);
+		for (int i = 0; i < chunkCount; i++) {
+			final int start = (int) ((long) size * i / chunkCount);
+			final int end = (int) ((long) size * (i + 1) / chunkCount);
+
+			futures.add(getExecutor().submit(new Callable<List<PackageMetadata>>() {
+				@Override
+				public List<PackageMetadata> call() {
+					final List<PackageMetadata> metadatas = new ArrayList<PackageMetadata>(end - start);
+					createMetadata(packageInfos.subList(start, end), packageManager, metadatas);
+					return metadatas;
+				}
+			}));
+		}
+
+		final List<PackageMetadata> metadatas = new ArrayList<PackageMetadata>(size);
+		for (int i = 0; i < chunkCount; i++) {
+			try {
+				metadatas.addAll(futures.get(i).get());
+			}
+			catch (InterruptedException e) {
+				// Return what's done so far.
+				Thread.currentThread().interrupt();
+				for (Future<List<PackageMetadata>> other : futures) {
+					other.cancel(true);
+				}
+				break;
+			}
+			catch (ExecutionException e) {
+				// Retry the chunk on this thread rather than leave all of its packages out.
+				Log.w("Failed to load package labels.", e.getCause());
+
+				final int start = (int) ((long) size * i / chunkCount);
+				final int end = (int) ((long) size * (i + 1) / chunkCount);
+				createMetadata(packageInfos.subList(start, end), packageManager, metadatas);
+			}
+		}
+
+		return metadatas;
+	}
+
+	private static void createMetadata(List<PackageInfo> packageInfos, PackageManager packageManager,
+			List<PackageMetadata> metadatas) {
+
+		for (PackageInfo packageInfo : packageInfos) {
+			try {
+				metadatas.add(PackageMetadata.create(packageInfo, packageManager));
+			}
+			catch (Exception e) {
+				Log.w("Failed to get package info for " + packageInfo.packageName + ".", e);
+			}
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				private int mCount;
+
+				@Override
+				public synchronized Thread newThread(Runnable runnable) {
+					final Thread thread = new Thread(runnable, "AndroidUtils #" + ++mCount);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		return sExecutor;
+	}
+}
@@ -0,0 +1,301 @@
+package com.michaelpardo.android.util;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+/**
+ * Keeps released bitmaps around so they can be drawn into again instead of allocating new ones.
+ * Where Bitmap.reconfigure is available (API 19), bitmaps are allocated with their width and
+ * height rounded up to a multiple of {@link #BUCKET_SIZE} pixels, and any pooled bitmap that is
+ * large enough is reconfigured to the requested size, so views of slightly different sizes share
+ * bitmaps. Before that, a bitmap is only handed out again for the exact same width, height and
+ * config. The pool is bounded in bytes; once full, the bitmaps released longest ago are recycled.
+ */
+public class BitmapPool {
+	public static final int BUCKET_SIZE = 64;
+
+	// Bitmap.reconfigure() and Bitmap.getAllocationByteCount() need API 19.
+	private static final Method RECONFIGURE_METHOD = findBitmapMethod("reconfigure", int.class, int.class,
+			Bitmap.Config.class);
+	private static final Method GET_ALLOCATION_BYTE_COUNT_METHOD = findBitmapMethod("getAllocationByteCount");
+
+	// Least recently released first.
+	private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+
+	private int mMaxSize;
+	private int mSize;
+
+	private int mHitCount;
+	private int mMissCount;
+
+	public BitmapPool(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize < 0");
+		}
+
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Returns a cleared, mutable bitmap of the given size and config, taken from the pool if one
+	 * is available and allocated otherwise.
+	 */
+	public Bitmap get(int width, int height, Bitmap.Config config) {
+		Bitmap bitmap = null;
+
+		synchronized (this) {
+			bitmap = take(width, height, config);
+
+			if (bitmap != null) {
+				mHitCount++;
+			}
+			else {
+				mMissCount++;
+			}
+		}
+
+		if (bitmap == null) {
+			return createBitmap(width, height, config);
+		}
+
+		if (!reconfigure(bitmap, width, height, config)) {
+			bitmap.recycle();
+			return createBitmap(width, height, config);
+		}
+
+		bitmap.eraseColor(Color.TRANSPARENT);
+
+		return bitmap;
+	}
+
+	/**
+	 * Hands a bitmap back to the pool. The caller must not use it afterwards, since it may be
+	 * given out again or recycled.
+	 */
+	public void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled()) {
+			return;
+		}
+
+		final int size = getAllocationByteCount(bitmap);
+		final List<Bitmap> evicted;
+
+		synchronized (this) {
+			if (mBitmaps.contains(bitmap)) {
+				return;
+			}
+
+			if (!bitmap.isMutable() || size > mMaxSize) {
+				evicted = null;
+			}
+			else {
+				mBitmaps.addLast(bitmap);
+				mSize += size;
+				evicted = evict(mMaxSize);
+			}
+		}
+
+		if (evicted == null) {
+			bitmap.recycle();
+		}
+		else {
+			recycle(evicted);
+		}
+	}
+
+	public void setMaxSize(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize < 0");
+		}
+
+		final List<Bitmap> evicted;
+		synchronized (this) {
+			mMaxSize = maxSize;
+			evicted = evict(maxSize);
+		}
+
+		recycle(evicted);
+	}
+
+	/**
+	 * Recycles pooled bitmaps until the pool holds at most the given number of bytes.
+	 */
+	public void trimToSize(int size) {
+		final List<Bitmap> evicted;
+		synchronized (this) {
+			evicted = evict(size);
+		}
+
+		recycle(evicted);
+	}
+
+	public void clear() {
+		trimToSize(0);
+	}
+
+	public synchronized int getSize() {
+		return mSize;
+	}
+
+	public synchronized int getMaxSize() {
+		return mMaxSize;
+	}
+
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	public static int getByteCount(Bitmap bitmap) {
+		// Bitmap.getByteCount() needs API 12.
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	// Must hold the lock. Prefers an exact match, then the newest bitmap that can be
+	// reconfigured to the size.
+	private Bitmap take(int width, int height, Bitmap.Config config) {
+		// Newest first; descendingIterator() needs API 9.
+		ListIterator<Bitmap> iterator = mBitmaps.listIterator(mBitmaps.size());
+		while (iterator.hasPrevious()) {
+			final Bitmap candidate = iterator.previous();
+			if (candidate.getWidth() == width && candidate.getHeight() == height && candidate.getConfig() == config) {
+				iterator.remove();
+				mSize -= getAllocationByteCount(candidate);
+				return candidate;
+			}
+		}
+
+		if (RECONFIGURE_METHOD == null) {
+			return null;
+		}
+
+		// Large enough, but not so large that a small snapshot holds on to a big bitmap.
+		final int byteCount = width * height * getBytesPerPixel(config);
+
+		iterator = mBitmaps.listIterator(mBitmaps.size());
+		while (iterator.hasPrevious()) {
+			final Bitmap candidate = iterator.previous();
+			final int allocationByteCount = getAllocationByteCount(candidate);
+			if (allocationByteCount >= byteCount && allocationByteCount <= byteCount * 2) {
+				iterator.remove();
+				mSize -= allocationByteCount;
+				return candidate;
+			}
+		}
+
+		return null;
+	}
+
+	// Must hold the lock. Evicted bitmaps are recycled by the caller after releasing it.
+	private List<Bitmap> evict(int size) {
+		final List<Bitmap> evicted = new ArrayList<Bitmap>();
+		while (mSize > size && !mBitmaps.isEmpty()) {
+			final Bitmap bitmap = mBitmaps.removeFirst();
+			mSize -= getAllocationByteCount(bitmap);
+			evicted.add(bitmap);
+		}
+
+		return evicted;
+	}
+
+	private static void recycle(List<Bitmap> bitmaps) {
+		for (Bitmap bitmap : bitmaps) {
+			bitmap.recycle();
+		}
+	}
+
+	private static Bitmap createBitmap(int width, int height, Bitmap.Config config) {
+		if (RECONFIGURE_METHOD == null) {
+			return Bitmap.createBitmap(width, height, config);
+		}
+
+		// Leave room for slightly larger requests in the same bucket.
+		final Bitmap bitmap = Bitmap.createBitmap(roundUp(width), roundUp(height), config);
+		if (!reconfigure(bitmap, width, height, config)) {
+			bitmap.recycle();
+			return Bitmap.createBitmap(width, height, config);
+		}
+
+		return bitmap;
+	}
+
+	private static boolean reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+		if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+			return true;
+		}
+		if (RECONFIGURE_METHOD == null) {
+			return false;
+		}
+
+		try {
+			RECONFIGURE_METHOD.invoke(bitmap, width, height, config);
+			return true;
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+
+	private static int getAllocationByteCount(Bitmap bitmap) {
+		if (GET_ALLOCATION_BYTE_COUNT_METHOD != null) {
+			try {
+				return (Integer) GET_ALLOCATION_BYTE_COUNT_METHOD.invoke(bitmap);
+			}
+			catch (Exception e) {
+				// Fall back to the size of the pixels in use.
+			}
+		}
+
+		return getByteCount(bitmap);
+	}
+
+	private static int getBytesPerPixel(Bitmap.Config config) {
+		switch (config) {
+		case ALPHA_8:
+			return 1;
+		case RGB_565:
+		case ARGB_4444:
+			return 2;
+		default:
+			return 4;
+		}
+	}
+
+	private static int roundUp(int size) {
+		return (size + BUCKET_SIZE - 1) / BUCKET_SIZE * BUCKET_SIZE;
+	}
+
+	private static Method findBitmapMethod(String name, Class<?>... parameterTypes) {
+		try {
+			return Bitmap.class.getMethod(name, parameterTypes);
+		}
+		catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package com.michaelpardo.android.util;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Stores settings in append-only logs under the app's files directory, so a write costs the
+ * size of the change instead of a rewrite of the whole preferences file. Falls back to regular
+ * SharedPreferences if a log can't be opened.
+ *
+ * @see LogSharedPreferences
+ */
+public class LogSettingStorage implements SettingStorage {
+	private static final String TAG = "LogSettingStorage";
+
+	private static final String DIRECTORY = "settings";
+	private static final String EXTENSION = ".log";
+
+	private final Map<String, SharedPreferences> mPreferences = new HashMap<String, SharedPreferences>();
+
+	@Override
+	public synchronized SharedPreferences getPreferences(Context context, String name) {
+		if (name == null) {
+			name = context.getPackageName() + "_preferences";
+		}
+
+		SharedPreferences preferences = mPreferences.get(name);
+		if (preferences == null) {
+			final File directory = new File(context.getFilesDir(), DIRECTORY);
+			directory.mkdirs();
+
+			try {
+				preferences = new LogSharedPreferences(new File(directory, name + EXTENSION));
+			}
+			catch (IOException e) {
+				Log.e(TAG, "Failed to open settings log " + name + ". Using SharedPreferences instead.", e);
+				preferences = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+			}
+
+			mPreferences.put(name, preferences);
+		}
+
+		return preferences;
+	}
+}
@@ -0,0 +1,279 @@
+package com.michaelpardo.android.util;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.michaelpardo.java.io.LogStore;
+
+/**
+ * SharedPreferences backed by a {@link LogStore}. Edits append a record to a memory-mapped log
+ * instead of rewriting the file; apply() doesn't force the record to disk and commit() does. The
+ * log is compacted on a background thread once it's mostly overwritten entries. Like the
+ * framework implementation, listeners are held weakly and called on the main thread.
+ */
+public class LogSharedPreferences implements SharedPreferences {
+	private static final String TAG = "LogSharedPreferences";
+
+	private static final Object PRESENT = new Object();
+
+	private final LogStore mStore;
+	private final Map<OnSharedPreferenceChangeListener, Object> mListeners = new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
+
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private boolean mCompactionScheduled;
+
+	public LogSharedPreferences(File file) throws IOException {
+		mStore = new LogStore(file);
+	}
+
+	@Override
+	public Map<String, ?> getAll() {
+		return mStore.getAll();
+	}
+
+	@Override
+	public String getString(String key, String defValue) {
+		final Object value = mStore.get(key);
+		return value != null ? (String) value : defValue;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Set<String> getStringSet(String key, Set<String> defValues) {
+		final Object value = mStore.get(key);
+		return value != null ? (Set<String>) value : defValues;
+	}
+
+	@Override
+	public int getInt(String key, int defValue) {
+		final Object value = mStore.get(key);
+		return value != null ? (Integer) value : defValue;
+	}
+
+	@Override
+	public long getLong(String key, long defValue) {
+		final Object value = mStore.get(key);
+		return value != null ? (Long) value : defValue;
+	}
+
+	@Override
+	public float getFloat(String key, float defValue) {
+		final Object value = mStore.get(key);
+		return value != null ? (Float) value : defValue;
+	}
+
+	@Override
+	public boolean getBoolean(String key, boolean defValue) {
+		final Object value = mStore.get(key);
+		return value != null ? (Boolean) value : defValue;
+	}
+
+	@Override
+	public boolean contains(String key) {
+		return mStore.contains(key);
+	}
+
+	@Override
+	public Editor edit() {
+		return new LogEditor();
+	}
+
+	/**
+	 * Returns the number of bytes appended to the log for each key since it was opened.
+	 */
+	public Map<String, Long> getBytesWritten() {
+		return mStore.getBytesWritten();
+	}
+
+	@Override
+	public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+		synchronized (mListeners) {
+			mListeners.put(listener, PRESENT);
+		}
+	}
+
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+		synchronized (mListeners) {
+			mListeners.remove(listener);
+		}
+	}
+
+	private boolean write(Map<String, Object> changes, boolean clear, boolean sync) {
+		final List<String> changedKeys;
+		try {
+			changedKeys = mStore.write(changes, clear, sync);
+		}
+		catch (IOException e) {
+			Log.e(TAG, "Failed to write settings.", e);
+			return false;
+		}
+
+		if (mStore.needsCompaction()) {
+			scheduleCompaction();
+		}
+
+		if (!changedKeys.isEmpty()) {
+			notifyListeners(changedKeys);
+		}
+
+		return true;
+	}
+
+	private void notifyListeners(final List<String> keys) {
+		final List<OnSharedPreferenceChangeListener> listeners;
+		synchronized (mListeners) {
+			if (mListeners.isEmpty()) {
+				return;
+			}
+			listeners = new ArrayList<OnSharedPreferenceChangeListener>(mListeners.keySet());
+		}
+
+		final Runnable notify = new Runnable() {
+			@Override
+			public void run() {
+				for (String key : keys) {
+					for (OnSharedPreferenceChangeListener listener : listeners) {
+						listener.onSharedPreferenceChanged(LogSharedPreferences.this, key);
+					}
+				}
+			}
+		};
+
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			notify.run();
+		}
+		else {
+			mMainHandler.post(notify);
+		}
+	}
+
+	private synchronized void scheduleCompaction() {
+		if (mCompactionScheduled) {
+			return;
+		}
+
+		mCompactionScheduled = true;
+		SettingUtils.getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mStore.compact();
+				}
+				catch (IOException e) {
+					Log.w(TAG, "Failed to compact settings log.", e);
+				}
+				finally {
+					synchronized (LogSharedPreferences.this) {
+						mCompactionScheduled = false;
+					}
+				}
+			}
+		});
+	}
+
+	private class LogEditor implements Editor {
+		private final Map<String, Object> mChanges = new HashMap<String, Object>();
+		private boolean mClear;
+
+		@Override
+		public synchronized Editor putString(String key, String value) {
+			mChanges.put(key, value);
+			return this;
+		}
+
+		@Override
+		public synchronized Editor putStringSet(String key, Set<String> values) {
+			mChanges.put(key, values != null ? Collections.unmodifiableSet(new HashSet<String>(values)) : null);
+			return this;
+		}
+
+		@Override
+		public synchronized Editor putInt(String key, int value) {
+			mChanges.put(key, value);
+			return this;
+		}
+
+		@Override
+		public synchronized Editor putLong(String key, long value) {
+			mChanges.put(key, value);
+			return this;
+		}
+
+		@Override
+		public synchronized Editor putFloat(String key, float value) {
+			mChanges.put(key, value);
+			return this;
+		}
+
+		@Override
+		public synchronized Editor putBoolean(String key, boolean value) {
+			mChanges.put(key, value);
+			return this;
+		}
+
+		@Override
+		public synchronized Editor remove(String key) {
+			mChanges.put(key, null);
+			return this;
+		}
+
+		@Override
+		public synchronized Editor clear() {
+			mClear = true;
+			return this;
+		}
+
+		@Override
+		public boolean commit() {
+			return flush(true);
+		}
+
+		@Override
+		public void apply() {
+			flush(false);
+		}
+
+		private boolean flush(boolean sync) {
+			final Map<String, Object> changes;
+			final boolean clear;
+			synchronized (this) {
+				changes = new HashMap<String, Object>(mChanges);
+				clear = mClear;
+				mChanges.clear();
+				mClear = false;
+			}
+
+			return write(changes, clear, sync);
+		}
+	}
+}
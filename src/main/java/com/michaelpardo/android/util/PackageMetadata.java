@@ -0,0 +1,91 @@
+package com.michaelpardo.android.util;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.util.Locale;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+/**
+ * Label and version of an installed package, as cached by AndroidUtils.
+ *
+ * @see AndroidUtils#getPackageMetadata(android.content.Context, String)
+ */
+public class PackageMetadata {
+	private final String mPackageName;
+	private final String mLabel;
+	private final String mVersionName;
+	private final int mVersionCode;
+
+	// The locale the label was loaded in.
+	private final String mLocale;
+
+	// The apk and its modification time, to tell whether a persisted copy is still current.
+	private final String mSourceDir;
+	private final long mSourceModified;
+
+	PackageMetadata(String packageName, String label, String versionName, int versionCode, String locale,
+			String sourceDir, long sourceModified) {
+
+		mPackageName = packageName;
+		mLabel = label;
+		mVersionName = versionName;
+		mVersionCode = versionCode;
+		mLocale = locale;
+		mSourceDir = sourceDir;
+		mSourceModified = sourceModified;
+	}
+
+	static PackageMetadata create(PackageInfo packageInfo, PackageManager packageManager) {
+		final CharSequence label = packageInfo.applicationInfo.loadLabel(packageManager);
+		final String sourceDir = packageInfo.applicationInfo.sourceDir;
+
+		return new PackageMetadata(packageInfo.packageName, label != null ? label.toString() : "",
+				packageInfo.versionName != null ? packageInfo.versionName : "", packageInfo.versionCode,
+				Locale.getDefault().toString(), sourceDir, sourceDir != null ? new File(sourceDir).lastModified() : 0);
+	}
+
+	public String getPackageName() {
+		return mPackageName;
+	}
+
+	public String getLabel() {
+		return mLabel;
+	}
+
+	public String getVersionName() {
+		return mVersionName;
+	}
+
+	public int getVersionCode() {
+		return mVersionCode;
+	}
+
+	String getLocale() {
+		return mLocale;
+	}
+
+	String getSourceDir() {
+		return mSourceDir;
+	}
+
+	long getSourceModified() {
+		return mSourceModified;
+	}
+}
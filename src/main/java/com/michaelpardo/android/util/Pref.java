@@ -0,0 +1,86 @@
+package com.michaelpardo.android.util;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+
+/**
+ * A setting whose value is cached in a field. The value is loaded through SettingUtils on first
+ * use and refreshed by a change listener, so reads don't go through SharedPreferences. The
+ * framework holds change listeners weakly; keep prefs in static fields or otherwise referenced,
+ * or they stop being refreshed.
+ */
+public abstract class Pref implements OnSharedPreferenceChangeListener {
+	private final String mKey;
+
+	private Context mContext;
+	private volatile boolean mLoaded;
+
+	protected Pref(String key) {
+		mKey = key;
+	}
+
+	public String getKey() {
+		return mKey;
+	}
+
+	public boolean contains(Context context) {
+		return SettingUtils.contains(context, mKey);
+	}
+
+	public void remove(Context context) {
+		SettingUtils.remove(context, mKey);
+
+		// With auto-flush on, the change listener only fires once the removal is written, so
+		// reset the cached value now, as set() does.
+		if (mLoaded) {
+			load(mContext);
+		}
+	}
+
+	@Override
+	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+		if (mKey.equals(key)) {
+			load(mContext);
+		}
+	}
+
+	/**
+	 * Loads the value and registers the change listener, once.
+	 */
+	protected final void ensureLoaded(Context context) {
+		if (mLoaded) {
+			return;
+		}
+
+		synchronized (this) {
+			if (!mLoaded) {
+				mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+				SettingUtils.getPreferences(mContext, mKey).registerOnSharedPreferenceChangeListener(this);
+				load(mContext);
+				mLoaded = true;
+			}
+		}
+	}
+
+	/**
+	 * Reads the current value from SettingUtils into the cached field.
+	 */
+	protected abstract void load(Context context);
+}
@@ -0,0 +1,304 @@
+package com.michaelpardo.android.util;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary encoding of a set of typed settings. Entries are a type byte, the key and the value;
+ * lengths and integers are varints and booleans are folded into the type, so most entries take
+ * a few bytes more than their key. Channels are read and written through a fixed buffer.
+ *
+ * @see SettingUtils#exportSnapshot(android.content.Context, WritableByteChannel)
+ */
+final class SettingSnapshot {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int MAGIC = 0x53535431;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final byte END = 0;
+	private static final byte TRUE = 1;
+	private static final byte FALSE = 2;
+	private static final byte INT = 3;
+	private static final byte LONG = 4;
+	private static final byte FLOAT = 5;
+	private static final byte STRING = 6;
+	private static final byte STRING_SET = 7;
+
+	private SettingSnapshot() {
+	}
+
+	static void write(Map<String, ?> values, WritableByteChannel channel) throws IOException {
+		final Output out = new Output(channel);
+		out.writeInt(MAGIC);
+
+		for (Map.Entry<String, ?> entry : values.entrySet()) {
+			final Object value = entry.getValue();
+
+			if (value instanceof Boolean) {
+				out.writeByte((Boolean) value ? TRUE : FALSE);
+				out.writeString(entry.getKey());
+			}
+			else if (value instanceof Integer) {
+				out.writeByte(INT);
+				out.writeString(entry.getKey());
+				out.writeVarint((Integer) value);
+			}
+			else if (value instanceof Long) {
+				out.writeByte(LONG);
+				out.writeString(entry.getKey());
+				out.writeVarint((Long) value);
+			}
+			else if (value instanceof Float) {
+				out.writeByte(FLOAT);
+				out.writeString(entry.getKey());
+				out.writeInt(Float.floatToIntBits((Float) value));
+			}
+			else if (value instanceof String) {
+				out.writeByte(STRING);
+				out.writeString(entry.getKey());
+				out.writeString((String) value);
+			}
+			else if (value instanceof Set) {
+				final Set<?> set = (Set<?>) value;
+				out.writeByte(STRING_SET);
+				out.writeString(entry.getKey());
+				out.writeVarint(set.size());
+				for (Object element : set) {
+					out.writeString((String) element);
+				}
+			}
+		}
+
+		out.writeByte(END);
+		out.flush();
+	}
+
+	static Map<String, Object> read(ReadableByteChannel channel) throws IOException {
+		final Input in = new Input(channel);
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a settings snapshot");
+		}
+
+		final Map<String, Object> values = new HashMap<String, Object>();
+
+		byte type;
+		while ((type = in.readByte()) != END) {
+			final String key = in.readString();
+
+			switch (type) {
+			case TRUE:
+				values.put(key, Boolean.TRUE);
+				break;
+			case FALSE:
+				values.put(key, Boolean.FALSE);
+				break;
+			case INT:
+				values.put(key, Integer.valueOf((int) in.readVarint()));
+				break;
+			case LONG:
+				values.put(key, Long.valueOf(in.readVarint()));
+				break;
+			case FLOAT:
+				values.put(key, Float.valueOf(Float.intBitsToFloat(in.readInt())));
+				break;
+			case STRING:
+				values.put(key, in.readString());
+				break;
+			case STRING_SET:
+				final int count = in.readLength();
+				final Set<String> set = new HashSet<String>();
+				for (int i = 0; i < count; i++) {
+					set.add(in.readString());
+				}
+				values.put(key, Collections.unmodifiableSet(set));
+				break;
+			default:
+				throw new IOException("Unknown entry type " + type + " in settings snapshot");
+			}
+		}
+
+		return values;
+	}
+
+	private static final class Output {
+		private final WritableByteChannel mChannel;
+		private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+		Output(WritableByteChannel channel) {
+			mChannel = channel;
+		}
+
+		void writeByte(byte value) throws IOException {
+			ensureRemaining(1);
+			mBuffer.put(value);
+		}
+
+		void writeInt(int value) throws IOException {
+			ensureRemaining(4);
+			mBuffer.putInt(value);
+		}
+
+		/**
+		 * Zigzag encoded, so small negative numbers stay short.
+		 */
+		void writeVarint(long value) throws IOException {
+			ensureRemaining(10);
+
+			long bits = (value << 1) ^ (value >> 63);
+			while ((bits & ~0x7fL) != 0) {
+				mBuffer.put((byte) ((bits & 0x7f) | 0x80));
+				bits >>>= 7;
+			}
+			mBuffer.put((byte) bits);
+		}
+
+		void writeString(String value) throws IOException {
+			final ByteBuffer bytes = UTF_8.encode(value);
+			writeVarint(bytes.remaining());
+
+			if (bytes.remaining() <= mBuffer.remaining()) {
+				mBuffer.put(bytes);
+				return;
+			}
+
+			flush();
+			if (bytes.remaining() <= mBuffer.remaining()) {
+				mBuffer.put(bytes);
+			}
+			else {
+				writeFully(bytes);
+			}
+		}
+
+		void flush() throws IOException {
+			mBuffer.flip();
+			writeFully(mBuffer);
+			mBuffer.clear();
+		}
+
+		private void ensureRemaining(int count) throws IOException {
+			if (mBuffer.remaining() < count) {
+				flush();
+			}
+		}
+
+		private void writeFully(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				mChannel.write(buffer);
+			}
+		}
+	}
+
+	private static final class Input {
+		private final ReadableByteChannel mChannel;
+		private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+		Input(ReadableByteChannel channel) {
+			mChannel = channel;
+			mBuffer.flip();
+		}
+
+		byte readByte() throws IOException {
+			require(1);
+			return mBuffer.get();
+		}
+
+		int readInt() throws IOException {
+			require(4);
+			return mBuffer.getInt();
+		}
+
+		long readVarint() throws IOException {
+			long bits = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				final byte b = readByte();
+				bits |= (long) (b & 0x7f) << shift;
+
+				if ((b & 0x80) == 0) {
+					return (bits >>> 1) ^ -(bits & 1);
+				}
+			}
+
+			throw new IOException("Malformed varint in settings snapshot");
+		}
+
+		int readLength() throws IOException {
+			final long length = readVarint();
+			if (length < 0 || length > Integer.MAX_VALUE) {
+				throw new IOException("Malformed length in settings snapshot");
+			}
+			return (int) length;
+		}
+
+		String readString() throws IOException {
+			final int length = readLength();
+
+			if (length <= mBuffer.capacity()) {
+				require(length);
+
+				final ByteBuffer bytes = mBuffer.slice();
+				bytes.limit(length);
+				mBuffer.position(mBuffer.position() + length);
+
+				return UTF_8.decode(bytes).toString();
+			}
+
+			final ByteBuffer bytes = ByteBuffer.allocate(length);
+			while (bytes.hasRemaining()) {
+				if (!mBuffer.hasRemaining()) {
+					require(1);
+				}
+
+				final int count = Math.min(bytes.remaining(), mBuffer.remaining());
+				final ByteBuffer chunk = mBuffer.slice();
+				chunk.limit(count);
+				bytes.put(chunk);
+				mBuffer.position(mBuffer.position() + count);
+			}
+			bytes.flip();
+
+			return UTF_8.decode(bytes).toString();
+		}
+
+		private void require(int count) throws IOException {
+			if (mBuffer.remaining() >= count) {
+				return;
+			}
+
+			mBuffer.compact();
+			while (mBuffer.position() < count) {
+				if (mChannel.read(mBuffer) < 0) {
+					throw new EOFException("Truncated settings snapshot");
+				}
+			}
+			mBuffer.flip();
+		}
+	}
+}
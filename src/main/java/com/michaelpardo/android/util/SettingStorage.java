@@ -0,0 +1,33 @@
+package com.michaelpardo.android.util;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Supplies the SharedPreferences behind SettingUtils.
+ *
+ * @see SettingUtils#setStorage(SettingStorage)
+ */
+public interface SettingStorage {
+	/**
+	 * Returns the preferences with the given name, or the default preferences if the name is
+	 * null. Must return the same instance for the same name.
+	 */
+	public SharedPreferences getPreferences(Context context, String name);
+}
@@ -16,138 +16,1101 @@ package com.michaelpardo.android.util;
  * limitations under the License.
  */
 
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
+import android.support.v4.util.LruCache;
 import android.util.Log;
+import android.util.SparseArray;
 
 public class SettingUtils {
+	public static interface OnSettingChangedListener {
+		public void onSettingChanged(String key);
+	}
+
 	public static boolean contains(Context context, int resId) {
-		return contains(context, context.getString(resId));
+		return contains(context, getKey(context, resId));
 	}
 
 	public static boolean contains(Context context, String key) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		if (sHasPending) {
+			final Object value = getPending(key);
+			if (value != null) {
+				return value != REMOVED;
+			}
+		}
+
+		SharedPreferences prefs = getPreferences(context, key);
 		return prefs.contains(key);
 	}
 
 	public static void remove(Context context, int resId) {
-		remove(context, context.getString(resId));
+		remove(context, getKey(context, resId));
 	}
 
 	public static void remove(Context context, String key) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		SharedPreferences.Editor editor = prefs.edit();
-		editor.remove(key);
-		commitOrApply(editor);
+		write(context, key, REMOVED);
 	}
 
 	public static void set(Context context, int resId, boolean value) {
-		set(context, context.getString(resId), value);
+		set(context, getKey(context, resId), value);
 	}
 
 	public static void set(Context context, String key, boolean value) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		SharedPreferences.Editor editor = prefs.edit();
-		editor.putBoolean(key, value);
-		commitOrApply(editor);
+		write(context, key, Boolean.valueOf(value));
 	}
 
 	public static void set(Context context, int resId, float value) {
-		set(context, context.getString(resId), value);
+		set(context, getKey(context, resId), value);
 	}
 
 	public static void set(Context context, String key, float value) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		SharedPreferences.Editor editor = prefs.edit();
-		editor.putFloat(key, value);
-		commitOrApply(editor);
+		write(context, key, Float.valueOf(value));
 	}
 
 	public static void set(Context context, int resId, int value) {
-		set(context, context.getString(resId), value);
+		set(context, getKey(context, resId), value);
 	}
 
 	public static void set(Context context, String key, int value) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		SharedPreferences.Editor editor = prefs.edit();
-		editor.putInt(key, value);
-		commitOrApply(editor);
+		write(context, key, Integer.valueOf(value));
 	}
 
 	public static void set(Context context, int resId, long value) {
-		set(context, context.getString(resId), value);
+		set(context, getKey(context, resId), value);
 	}
 
 	public static void set(Context context, String key, long value) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		SharedPreferences.Editor editor = prefs.edit();
-		editor.putLong(key, value);
-		commitOrApply(editor);
+		write(context, key, Long.valueOf(value));
 	}
 
 	public static void set(Context context, int resId, String value) {
-		set(context, context.getString(resId), value);
+		set(context, getKey(context, resId), value);
 	}
 
 	public static void set(Context context, String key, String value) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		SharedPreferences.Editor editor = prefs.edit();
-		editor.putString(key, value);
-		commitOrApply(editor);
+		write(context, key, value);
 	}
 
 	public static boolean get(Context context, int resId, boolean defValue) {
-		return get(context, context.getString(resId), defValue);
+		return get(context, getKey(context, resId), defValue);
 	}
 
 	public static boolean get(Context context, String key, boolean defValue) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		if (sHasPending) {
+			final Object value = getPending(key);
+			if (value != null) {
+				return value != REMOVED ? (Boolean) value : defValue;
+			}
+		}
+
+		SharedPreferences prefs = getPreferences(context, key);
 		return prefs.getBoolean(key, defValue);
 	}
 
 	public static float get(Context context, int resId, float defValue) {
-		return get(context, context.getString(resId), defValue);
+		return get(context, getKey(context, resId), defValue);
 	}
 
 	public static float get(Context context, String key, float defValue) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		if (sHasPending) {
+			final Object value = getPending(key);
+			if (value != null) {
+				return value != REMOVED ? (Float) value : defValue;
+			}
+		}
+
+		SharedPreferences prefs = getPreferences(context, key);
 		return prefs.getFloat(key, defValue);
 	}
 
 	public static int get(Context context, int resId, int defValue) {
-		return get(context, context.getString(resId), defValue);
+		return get(context, getKey(context, resId), defValue);
 	}
 
 	public static int get(Context context, String key, int defValue) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		if (sHasPending) {
+			final Object value = getPending(key);
+			if (value != null) {
+				return value != REMOVED ? (Integer) value : defValue;
+			}
+		}
+
+		SharedPreferences prefs = getPreferences(context, key);
 		return prefs.getInt(key, defValue);
 	}
 
 	public static long get(Context context, int resId, long defValue) {
-		return get(context, context.getString(resId), defValue);
+		return get(context, getKey(context, resId), defValue);
 	}
 
 	public static long get(Context context, String key, long defValue) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		if (sHasPending) {
+			final Object value = getPending(key);
+			if (value != null) {
+				return value != REMOVED ? (Long) value : defValue;
+			}
+		}
+
+		SharedPreferences prefs = getPreferences(context, key);
 		return prefs.getLong(key, defValue);
 	}
 
 	public static String get(Context context, int resId, String defValue) {
-		return get(context, context.getString(resId), defValue);
+		return get(context, getKey(context, resId), defValue);
 	}
 
 	public static String get(Context context, String key, String defValue) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		if (sHasPending) {
+			final Object value = getPending(key);
+			if (value != null) {
+				return value != REMOVED ? (String) value : defValue;
+			}
+		}
+
+		SharedPreferences prefs = getPreferences(context, key);
 		return prefs.getString(key, defValue);
 	}
 
+	public static String getBlob(Context context, int resId, String defValue) {
+		return getBlob(context, getKey(context, resId), defValue);
+	}
+
+	/**
+	 * Returns a value stored with setBlob. Values are read from their file on first use and kept
+	 * in a cache bounded by {@link #setBlobCacheSize(int)}.
+	 */
+	public static String getBlob(Context context, String key, String defValue) {
+		String value = sBlobCache.get(key);
+		if (value != null) {
+			return value;
+		}
+
+		final int version = sBlobVersion;
+
+		final InputStream in = openBlob(context, key);
+		if (in == null) {
+			return defValue;
+		}
+
+		try {
+			final Reader reader = new InputStreamReader(in, "UTF-8");
+			final StringBuilder builder = new StringBuilder();
+			final char[] buffer = new char[4096];
+
+			int count;
+			while ((count = reader.read(buffer)) != -1) {
+				builder.append(buffer, 0, count);
+			}
+			value = builder.toString();
+		}
+		catch (IOException e) {
+			Log.e("", "Failed to read setting " + key + ".", e);
+			return defValue;
+		}
+		finally {
+			closeQuietly(in);
+		}
+
+		synchronized (BLOB_LOCK) {
+			// Don't cache a value that was replaced while it was being read.
+			if (version == sBlobVersion) {
+				sBlobCache.put(key, value);
+			}
+		}
+
+		return value;
+	}
+
+	/**
+	 * Opens a stream on a value stored with setBlob, or returns null if there is none. The value
+	 * isn't cached.
+	 */
+	public static InputStream openBlob(Context context, String key) {
+		if (get(context, key, (String) null) == null) {
+			return null;
+		}
+
+		try {
+			return new BufferedInputStream(new FileInputStream(new File(getBlobDirectory(context),
+					getBlobFileName(key))));
+		}
+		catch (FileNotFoundException e) {
+			Log.e("", "Missing file for setting " + key + ".", e);
+			return null;
+		}
+	}
+
+	public static void setBlob(Context context, int resId, String value) {
+		setBlob(context, getKey(context, resId), value);
+	}
+
+	/**
+	 * Stores a large value in a file of its own, keeping only the file name and a checksum of the
+	 * contents in the preferences, so it isn't loaded with the rest of the settings. The pointer
+	 * changes whenever the contents do, so change listeners and subscribers are notified. The file
+	 * is written to a temporary file, synced and renamed over the previous value. A null value
+	 * removes it.
+	 */
+	public static void setBlob(Context context, String key, String value) {
+		if (value == null) {
+			removeBlob(context, key);
+			return;
+		}
+
+		synchronized (BLOB_LOCK) {
+			final File directory = getBlobDirectory(context);
+			final String fileName = getBlobFileName(key);
+
+			final CRC32 checksum = new CRC32();
+
+			File temp = null;
+			try {
+				temp = File.createTempFile(fileName, ".tmp", directory);
+
+				final FileOutputStream out = new FileOutputStream(temp);
+				try {
+					final Writer writer = new BufferedWriter(new OutputStreamWriter(new CheckedOutputStream(out,
+							checksum), "UTF-8"));
+					writer.write(value);
+					writer.flush();
+					out.getFD().sync();
+				}
+				finally {
+					closeQuietly(out);
+				}
+
+				if (!temp.renameTo(new File(directory, fileName))) {
+					throw new IOException("Failed to rename " + temp);
+				}
+			}
+			catch (IOException e) {
+				Log.e("", "Failed to write setting " + key + ".", e);
+				if (temp != null) {
+					temp.delete();
+				}
+				return;
+			}
+
+			sBlobVersion++;
+			sBlobCache.put(key, value);
+
+			final String pointer = fileName + BLOB_CHECKSUM_SEPARATOR + Long.toHexString(checksum.getValue());
+			if (!pointer.equals(get(context, key, (String) null))) {
+				set(context, key, pointer);
+			}
+		}
+	}
+
+	public static void removeBlob(Context context, int resId) {
+		removeBlob(context, getKey(context, resId));
+	}
+
+	public static void removeBlob(Context context, String key) {
+		synchronized (BLOB_LOCK) {
+			sBlobVersion++;
+			sBlobCache.remove(key);
+
+			if (get(context, key, (String) null) != null) {
+				remove(context, key);
+				new File(getBlobDirectory(context), getBlobFileName(key)).delete();
+			}
+		}
+	}
+
+	/**
+	 * Sets the maximum number of bytes of blob values kept in memory. Clears the cache.
+	 */
+	public static void setBlobCacheSize(int maxBytes) {
+		synchronized (BLOB_LOCK) {
+			sBlobVersion++;
+			sBlobCache = new BlobCache(maxBytes);
+		}
+	}
+
+	public static void subscribe(Context context, int resId, OnSettingChangedListener listener) {
+		subscribe(context, getKey(context, resId), listener);
+	}
+
+	/**
+	 * Calls the listener on the main thread when the key's value is written.
+	 */
+	public static void subscribe(Context context, String key, OnSettingChangedListener listener) {
+		subscribe(context, key, MAIN_THREAD_EXECUTOR, listener);
+	}
+
+	public static void subscribe(Context context, int resId, Executor executor, OnSettingChangedListener listener) {
+		subscribe(context, getKey(context, resId), executor, listener);
+	}
+
+	/**
+	 * Calls the listener on the executor when the key's value is written. Unlike a
+	 * OnSharedPreferenceChangeListener, the listener only hears about its own key, and it's held
+	 * strongly until unsubscribed.
+	 */
+	public static void subscribe(Context context, String key, Executor executor, OnSettingChangedListener listener) {
+		final SharedPreferences preferences = getPreferences(context, key);
+
+		synchronized (SUBSCRIPTIONS) {
+			final Subscription[] subscriptions = SUBSCRIPTIONS.get(key);
+			final int count = subscriptions != null ? subscriptions.length : 0;
+
+			final Subscription[] added = new Subscription[count + 1];
+			if (count > 0) {
+				System.arraycopy(subscriptions, 0, added, 0, count);
+			}
+			added[count] = new Subscription(executor, listener);
+			SUBSCRIPTIONS.put(key, added);
+
+			// One listener per preferences file fans out to every subscription.
+			if (!DISPATCHED_PREFERENCES.containsKey(preferences)) {
+				DISPATCHED_PREFERENCES.put(preferences, Boolean.TRUE);
+				preferences.registerOnSharedPreferenceChangeListener(DISPATCHER);
+			}
+		}
+	}
+
+	public static void unsubscribe(Context context, int resId, OnSettingChangedListener listener) {
+		unsubscribe(getKey(context, resId), listener);
+	}
+
+	public static void unsubscribe(String key, OnSettingChangedListener listener) {
+		synchronized (SUBSCRIPTIONS) {
+			final Subscription[] subscriptions = SUBSCRIPTIONS.get(key);
+			if (subscriptions == null) {
+				return;
+			}
+
+			final List<Subscription> remaining = new ArrayList<Subscription>(subscriptions.length);
+			for (Subscription subscription : subscriptions) {
+				if (subscription.listener != listener) {
+					remaining.add(subscription);
+				}
+			}
+
+			if (remaining.isEmpty()) {
+				SUBSCRIPTIONS.remove(key);
+			}
+			else {
+				SUBSCRIPTIONS.put(key, remaining.toArray(new Subscription[remaining.size()]));
+			}
+		}
+	}
+
+	/**
+	 * Writes every setting, from the default preferences and every shard, to the channel in a
+	 * compact binary format. Held auto-flush writes are written first. Blob values live in their
+	 * own files and aren't included.
+	 */
+	public static void exportSnapshot(Context context, WritableByteChannel channel) throws IOException {
+		flush();
+
+		final Map<String, Object> values = new HashMap<String, Object>();
+
+		// Shards are ordered most specific first; let them win if a key is in several files.
+		final Shard[] shards = sShards;
+		for (int i = shards.length - 1; i >= 0; i--) {
+			values.putAll(getPreferences(context, shards[i]).getAll());
+		}
+
+		removeBlobPointers(values);
+		SettingSnapshot.write(values, channel);
+	}
+
+	/**
+	 * Reads a snapshot written by exportSnapshot and applies it as a single batch. If replace is
+	 * set, settings that aren't in the snapshot are removed, except blobs. Blob pointers found in
+	 * the snapshot are skipped, since their files aren't part of it. Returns the number of
+	 * settings read.
+	 */
+	public static int importSnapshot(Context context, ReadableByteChannel channel, boolean replace) throws IOException {
+		final Map<String, Object> values = SettingSnapshot.read(channel);
+		removeBlobPointers(values);
+
+		final Map<String, Object> changes = new HashMap<String, Object>();
+		if (replace) {
+			for (Shard shard : sShards) {
+				final Map<String, ?> current = getPreferences(context, shard).getAll();
+				for (Map.Entry<String, ?> entry : current.entrySet()) {
+					if (!isBlobPointer(entry.getKey(), entry.getValue())) {
+						changes.put(entry.getKey(), REMOVED);
+					}
+				}
+			}
+		}
+		changes.putAll(values);
+
+		commitChanges(context, changes);
+
+		return values.size();
+	}
+
+	/**
+	 * Returns an editor for the default preferences file only. Keys routed to a shard by
+	 * {@link #addShard(String, String)} written through it are never read back.
+	 *
+	 * @deprecated Use {@link #getEditor(Context, String)}, which routes by key.
+	 */
+	@Deprecated
 	public static SharedPreferences.Editor getEditor(Context context) {
-		return PreferenceManager.getDefaultSharedPreferences(context).edit();
+		return getPreferences(context).edit();
+	}
+
+	public static SharedPreferences.Editor getEditor(Context context, int resId) {
+		return getEditor(context, getKey(context, resId));
+	}
+
+	/**
+	 * Returns an editor for the preferences file the key is routed to. Only use it for that key,
+	 * or keys sharing its shard.
+	 */
+	public static SharedPreferences.Editor getEditor(Context context, String key) {
+		return getPreferences(context, key).edit();
+	}
+
+	/**
+	 * Returns a transaction collecting puts and removes, which are written with a single
+	 * commitOrApply when the transaction is committed.
+	 */
+	public static Transaction beginTransaction(Context context) {
+		return new Transaction(context);
+	}
+
+	/**
+	 * Routes keys starting with the prefix to the preferences file with the given name instead
+	 * of the default one, so frequently written keys can be kept apart from large, rarely
+	 * changed ones. The longest matching prefix wins. Values aren't migrated, so add shards
+	 * before any setting is read.
+	 */
+	public static synchronized void addShard(String prefix, String name) {
+		if (prefix == null || prefix.length() == 0) {
+			throw new IllegalArgumentException("prefix is empty");
+		}
+		if (name == null) {
+			throw new IllegalArgumentException("name is null");
+		}
+
+		final List<Shard> shards = new ArrayList<Shard>(Arrays.asList(sShards));
+		for (Iterator<Shard> i = shards.iterator(); i.hasNext();) {
+			if (i.next().prefix.equals(prefix)) {
+				i.remove();
+			}
+		}
+		shards.add(new Shard(prefix, name));
+
+		Collections.sort(shards, new Comparator<Shard>() {
+			@Override
+			public int compare(Shard lhs, Shard rhs) {
+				return rhs.prefix.length() - lhs.prefix.length();
+			}
+		});
+
+		sShards = shards.toArray(new Shard[shards.size()]);
+	}
+
+	/**
+	 * Starts loading the settings on a background thread, so the first read on the main thread
+	 * doesn't have to parse the preferences files. Main thread callers that get there before the
+	 * load finishes wait for it; see {@link #getPreloadWaitMillis()}. The future returns the
+	 * default preferences; files of shards added before the call are loaded too.
+	 */
+	public static synchronized Future<SharedPreferences> preload(Context context) {
+		final Future<SharedPreferences> preload = sPreload;
+		if (preload != null) {
+			return preload;
+		}
+
+		final Context applicationContext = getApplicationContext(context);
+		final FutureTask<SharedPreferences> task = new FutureTask<SharedPreferences>(new Callable<SharedPreferences>() {
+			@Override
+			public SharedPreferences call() {
+				for (Shard shard : sShards) {
+					// Any read blocks until the file is loaded.
+					getPreferences(applicationContext, shard).contains("");
+				}
+				return getPreferences(applicationContext);
+			}
+		});
+
+		sPreload = task;
+		getExecutor().execute(task);
+
+		return task;
+	}
+
+	/**
+	 * Total time the main thread spent waiting for a preload to finish.
+	 */
+	public static long getPreloadWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(PRELOAD_WAIT_NANOS.get());
+	}
+
+	/**
+	 * Number of main thread reads that had to wait for a preload to finish.
+	 */
+	public static int getPreloadWaitCount() {
+		return PRELOAD_WAIT_COUNT.get();
+	}
+
+	/**
+	 * When the delay is positive, set and remove calls are held in memory and written together
+	 * once the delay has passed since the first of them. Reads see held values immediately. A
+	 * delay of 0 disables this and writes anything still held.
+	 */
+	public static void setAutoFlushDelay(long delayMillis) {
+		if (delayMillis < 0) {
+			throw new IllegalArgumentException("delayMillis < 0");
+		}
+
+		sAutoFlushDelay = delayMillis;
+
+		if (delayMillis == 0) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes any set and remove calls held by the auto-flush delay now.
+	 */
+	public static void flush() {
+		synchronized (PENDING) {
+			// Applied under the lock so readers see either the held or the written value.
+			if (!PENDING.isEmpty()) {
+				applyChanges(sPendingContext, PENDING);
+				PENDING.clear();
+			}
+
+			sPendingContext = null;
+			sHasPending = false;
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+	// Storage
+
+	private static final SettingStorage DEFAULT_STORAGE = new SettingStorage() {
+		@Override
+		public SharedPreferences getPreferences(Context context, String name) {
+			if (name == null) {
+				return PreferenceManager.getDefaultSharedPreferences(context);
+			}
+			return context.getSharedPreferences(name, Context.MODE_PRIVATE);
+		}
+	};
+
+	private static volatile SettingStorage sStorage = DEFAULT_STORAGE;
+
+	/**
+	 * Replaces the storage behind every setting, or restores the default SharedPreferences if
+	 * storage is null. Values aren't migrated, so call this before any setting is read.
+	 */
+	public static void setStorage(SettingStorage storage) {
+		sStorage = storage != null ? storage : DEFAULT_STORAGE;
+
+		for (Shard shard : sShards) {
+			shard.preferences = null;
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+	// Cached preferences and resource keys
+
+	// Sorted by descending prefix length; the default shard matches every key and comes last.
+	private static final Shard DEFAULT_SHARD = new Shard("", null);
+	private static volatile Shard[] sShards = { DEFAULT_SHARD };
+
+	private static final SparseArray<String> KEYS = new SparseArray<String>();
+
+	private static volatile Future<SharedPreferences> sPreload;
+	private static final AtomicLong PRELOAD_WAIT_NANOS = new AtomicLong();
+	private static final AtomicInteger PRELOAD_WAIT_COUNT = new AtomicInteger();
+
+	static SharedPreferences getPreferences(Context context) {
+		return getPreferences(context, DEFAULT_SHARD);
+	}
+
+	/**
+	 * Returns the preferences the key is routed to.
+	 */
+	static SharedPreferences getPreferences(Context context, String key) {
+		for (Shard shard : sShards) {
+			if (key.startsWith(shard.prefix)) {
+				return getPreferences(context, shard);
+			}
+		}
+
+		return getPreferences(context, DEFAULT_SHARD);
+	}
+
+	private static SharedPreferences getPreferences(Context context, Shard shard) {
+		final Future<SharedPreferences> preload = sPreload;
+		if (preload != null) {
+			awaitPreload(preload);
+		}
+
+		final Context applicationContext = getApplicationContext(context);
+
+		PreferencesHolder holder = shard.preferences;
+		if (holder == null || holder.context != applicationContext) {
+			holder = new PreferencesHolder(applicationContext, sStorage.getPreferences(applicationContext, shard.name));
+			shard.preferences = holder;
+		}
+
+		return holder.preferences;
+	}
+
+	private static void awaitPreload(Future<SharedPreferences> preload) {
+		if (!preload.isDone()) {
+			// Other threads just block in the first read; the preload thread itself must not wait.
+			if (Looper.myLooper() != Looper.getMainLooper()) {
+				return;
+			}
+
+			final long start = System.nanoTime();
+			try {
+				preload.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (ExecutionException e) {
+				Log.w("", "Failed to preload settings.", e);
+			}
+
+			final long waited = System.nanoTime() - start;
+			PRELOAD_WAIT_NANOS.addAndGet(waited);
+			PRELOAD_WAIT_COUNT.incrementAndGet();
+
+			Log.i("", "Main thread waited " + TimeUnit.NANOSECONDS.toMillis(waited) + "ms for settings to load.");
+		}
+
+		if (preload.isDone()) {
+			sPreload = null;
+		}
+	}
+
+	private static Context getApplicationContext(Context context) {
+		final Context applicationContext = context.getApplicationContext();
+		return applicationContext != null ? applicationContext : context;
+	}
+
+	private static String getKey(Context context, int resId) {
+		synchronized (KEYS) {
+			String key = KEYS.get(resId);
+			if (key == null) {
+				key = context.getString(resId);
+				KEYS.put(resId, key);
+			}
+
+			return key;
+		}
+	}
+
+	private static final class Shard {
+		final String prefix;
+		final String name;
+
+		// Only one application context exists per process, so a single handle is enough.
+		volatile PreferencesHolder preferences;
+
+		Shard(String prefix, String name) {
+			this.prefix = prefix;
+			this.name = name;
+		}
+	}
+
+	private static final class PreferencesHolder {
+		final Context context;
+		final SharedPreferences preferences;
+
+		PreferencesHolder(Context context, SharedPreferences preferences) {
+			this.context = context;
+			this.preferences = preferences;
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+	// Change subscriptions
+
+	private static final Map<String, Subscription[]> SUBSCRIPTIONS = new HashMap<String, Subscription[]>();
+	private static final Map<SharedPreferences, Boolean> DISPATCHED_PREFERENCES = new WeakHashMap<SharedPreferences, Boolean>();
+
+	private static final Executor MAIN_THREAD_EXECUTOR = new Executor() {
+		private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+		@Override
+		public void execute(Runnable command) {
+			if (Looper.myLooper() == Looper.getMainLooper()) {
+				command.run();
+			}
+			else {
+				mHandler.post(command);
+			}
+		}
+	};
+
+	private static final OnSharedPreferenceChangeListener DISPATCHER = new OnSharedPreferenceChangeListener() {
+		@Override
+		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, final String key) {
+			if (key == null) {
+				return;
+			}
+
+			final Subscription[] subscriptions;
+			synchronized (SUBSCRIPTIONS) {
+				subscriptions = SUBSCRIPTIONS.get(key);
+			}
+			if (subscriptions == null) {
+				return;
+			}
+
+			for (final Subscription subscription : subscriptions) {
+				subscription.executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						subscription.listener.onSettingChanged(key);
+					}
+				});
+			}
+		}
+	};
+
+	private static final class Subscription {
+		final Executor executor;
+		final OnSettingChangedListener listener;
+
+		Subscription(Executor executor, OnSettingChangedListener listener) {
+			this.executor = executor;
+			this.listener = listener;
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+	// Blobs
+
+	private static final String BLOB_DIRECTORY = "setting_blobs";
+	private static final char BLOB_CHECKSUM_SEPARATOR = '#';
+	private static final int DEFAULT_BLOB_CACHE_SIZE = 512 * 1024;
+
+	private static final Object BLOB_LOCK = new Object();
+	private static volatile BlobCache sBlobCache = new BlobCache(DEFAULT_BLOB_CACHE_SIZE);
+
+	// Incremented whenever a blob changes, guarded by BLOB_LOCK.
+	private static volatile int sBlobVersion;
+
+	private static File getBlobDirectory(Context context) {
+		final File directory = new File(context.getFilesDir(), BLOB_DIRECTORY);
+		directory.mkdirs();
+		return directory;
+	}
+
+	private static String getBlobFileName(String key) {
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+
+			final StringBuilder builder = new StringBuilder(digest.length * 2 + 5);
+			for (byte b : digest) {
+				builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+				builder.append(Character.forDigit(b & 0xf, 16));
+			}
+
+			return builder.append(".blob").toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static boolean isBlobPointer(String key, Object value) {
+		return value instanceof String
+				&& ((String) value).startsWith(getBlobFileName(key) + BLOB_CHECKSUM_SEPARATOR);
+	}
+
+	private static void removeBlobPointers(Map<String, Object> values) {
+		final Iterator<Map.Entry<String, Object>> iterator = values.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final Map.Entry<String, Object> entry = iterator.next();
+			if (isBlobPointer(entry.getKey(), entry.getValue())) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		}
+		catch (IOException e) {
+			Log.w("", "Failed to close setting file.", e);
+		}
+	}
+
+	private static final class BlobCache extends LruCache<String, String> {
+		BlobCache(int maxBytes) {
+			super(maxBytes);
+		}
+
+		@Override
+		protected int sizeOf(String key, String value) {
+			return value.length() * 2;
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+	// Batched writes
+
+	private static final Object REMOVED = new Object();
+
+	private static final Map<String, Object> PENDING = new HashMap<String, Object>();
+	private static Context sPendingContext;
+	private static volatile boolean sHasPending;
+	private static volatile long sAutoFlushDelay;
+
+	private static ScheduledExecutorService sExecutor;
+
+	private static final Runnable FLUSH = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	private static void write(Context context, String key, Object value) {
+		if (value == null) {
+			value = REMOVED;
+		}
+
+		final long delay = sAutoFlushDelay;
+
+		if (delay > 0 || sHasPending) {
+			synchronized (PENDING) {
+				if (delay > 0) {
+					PENDING.put(key, value);
+					sHasPending = true;
+
+					if (sPendingContext == null) {
+						sPendingContext = getApplicationContext(context);
+						getExecutor().schedule(FLUSH, delay, TimeUnit.MILLISECONDS);
+					}
+					return;
+				}
+
+				// A held value for the key would otherwise overwrite this one when flushed.
+				PENDING.remove(key);
+			}
+		}
+
+		SharedPreferences.Editor editor = getPreferences(context, key).edit();
+		putValue(editor, key, value);
+		commitOrApply(editor);
+	}
+
+	private static Object getPending(String key) {
+		synchronized (PENDING) {
+			return PENDING.get(key);
+		}
+	}
+
+	/**
+	 * Applies the changes now, replacing any held values for the same keys.
+	 */
+	private static void commitChanges(Context context, Map<String, Object> changes) {
+		synchronized (PENDING) {
+			if (sHasPending) {
+				PENDING.keySet().removeAll(changes.keySet());
+			}
+
+			applyChanges(context, changes);
+		}
+	}
+
+	private static void applyChanges(Context context, Map<String, Object> changes) {
+		// One editor per preferences file the keys are routed to.
+		final Map<SharedPreferences, SharedPreferences.Editor> editors = new HashMap<SharedPreferences, SharedPreferences.Editor>();
+
+		for (Map.Entry<String, Object> change : changes.entrySet()) {
+			final SharedPreferences preferences = getPreferences(context, change.getKey());
+
+			SharedPreferences.Editor editor = editors.get(preferences);
+			if (editor == null) {
+				editor = preferences.edit();
+				editors.put(preferences, editor);
+			}
+
+			putValue(editor, change.getKey(), change.getValue());
+		}
+
+		for (SharedPreferences.Editor editor : editors.values()) {
+			commitOrApply(editor);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void putValue(SharedPreferences.Editor editor, String key, Object value) {
+		if (value == REMOVED) {
+			editor.remove(key);
+		}
+		else if (value instanceof Boolean) {
+			editor.putBoolean(key, (Boolean) value);
+		}
+		else if (value instanceof Float) {
+			editor.putFloat(key, (Float) value);
+		}
+		else if (value instanceof Integer) {
+			editor.putInt(key, (Integer) value);
+		}
+		else if (value instanceof Long) {
+			editor.putLong(key, (Long) value);
+		}
+		else if (value instanceof Set) {
+			putStringSet(editor, key, (Set<String>) value);
+		}
+		else {
+			editor.putString(key, (String) value);
+		}
+	}
+
+	static synchronized ScheduledExecutorService getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					final Thread thread = new Thread(runnable, "SettingUtils");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		return sExecutor;
+	}
+
+	public static final class Transaction {
+		private final Context mContext;
+		private final Map<String, Object> mChanges = new HashMap<String, Object>();
+
+		private Transaction(Context context) {
+			mContext = context;
+		}
+
+		public Transaction put(int resId, boolean value) {
+			return put(getKey(mContext, resId), value);
+		}
+
+		public Transaction put(String key, boolean value) {
+			mChanges.put(key, Boolean.valueOf(value));
+			return this;
+		}
+
+		public Transaction put(int resId, float value) {
+			return put(getKey(mContext, resId), value);
+		}
+
+		public Transaction put(String key, float value) {
+			mChanges.put(key, Float.valueOf(value));
+			return this;
+		}
+
+		public Transaction put(int resId, int value) {
+			return put(getKey(mContext, resId), value);
+		}
+
+		public Transaction put(String key, int value) {
+			mChanges.put(key, Integer.valueOf(value));
+			return this;
+		}
+
+		public Transaction put(int resId, long value) {
+			return put(getKey(mContext, resId), value);
+		}
+
+		public Transaction put(String key, long value) {
+			mChanges.put(key, Long.valueOf(value));
+			return this;
+		}
+
+		public Transaction put(int resId, String value) {
+			return put(getKey(mContext, resId), value);
+		}
+
+		public Transaction put(String key, String value) {
+			mChanges.put(key, value != null ? value : REMOVED);
+			return this;
+		}
+
+		public Transaction remove(int resId) {
+			return remove(getKey(mContext, resId));
+		}
+
+		public Transaction remove(String key) {
+			mChanges.put(key, REMOVED);
+			return this;
+		}
+
+		/**
+		 * Writes the collected changes with a single commitOrApply. Values held by the auto-flush
+		 * delay for the same keys are dropped, since these are newer.
+		 */
+		public void commit() {
+			if (mChanges.isEmpty()) {
+				return;
+			}
+
+			commitChanges(mContext, mChanges);
+			mChanges.clear();
+		}
 	}
 
 	//////////////////////////////////////////////////////////////////////////
@@ -167,10 +1130,43 @@ public class SettingUtils {
 		}
 	}
 
+	//////////////////////////////////////////////////////////////////////////
+	// String sets via reflection
+
+	// Editor.putStringSet() was added in API 11.
+	private static final Method PUT_STRING_SET_METHOD = findPutStringSetMethod();
+
+	private static Method findPutStringSetMethod() {
+		try {
+			return SharedPreferences.Editor.class.getMethod("putStringSet", String.class, Set.class);
+		}
+		catch (NoSuchMethodException unused) {
+			return null;
+		}
+	}
+
+	private static void putStringSet(Editor editor, String key, Set<String> value) {
+		if (PUT_STRING_SET_METHOD == null) {
+			Log.w("", "Editor.putStringSet() doesn't exist on this phone's OS.  Skipping " + key + ".");
+			return;
+		}
+
+		try {
+			PUT_STRING_SET_METHOD.invoke(editor, key, value);
+		}
+		catch (InvocationTargetException e) {
+			Log.w("", "Failed while using Editor.putStringSet().  Skipping " + key + ".", e);
+		}
+		catch (IllegalAccessException e) {
+			Log.w("", "Failed while using Editor.putStringSet().  Skipping " + key + ".", e);
+		}
+	}
+
 	public static void commitOrApply(Editor editor) {
 		if (APPLY_METHOD != null) {
 			try {
 				APPLY_METHOD.invoke(editor);
+				APPLY_COUNT.incrementAndGet();
 				return;
 			}
 			catch (InvocationTargetException e) {
@@ -179,8 +1175,54 @@ public class SettingUtils {
 			catch (IllegalAccessException e) {
 				Log.d("", "Failed while using Editor.apply().  Using Editor.commit() instead.", e);
 			}
+			FALLBACK_COUNT.incrementAndGet();
 		}
 
+		final long start = System.nanoTime();
 		editor.commit();
+		final long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+		COMMIT_COUNT.incrementAndGet();
+		COMMIT_LATENCIES.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(micros),
+				SettingWriteStats.LATENCY_BUCKETS - 1));
+	}
+
+	//////////////////////////////////////////////////////////////////////////
+	// Write metrics
+
+	private static final AtomicLong APPLY_COUNT = new AtomicLong();
+	private static final AtomicLong COMMIT_COUNT = new AtomicLong();
+	private static final AtomicLong FALLBACK_COUNT = new AtomicLong();
+	private static final AtomicLongArray COMMIT_LATENCIES = new AtomicLongArray(SettingWriteStats.LATENCY_BUCKETS);
+
+	/**
+	 * Returns a snapshot of the counts and latencies of writes made through commitOrApply, and
+	 * of the bytes written per key by storage that reports them.
+	 */
+	public static SettingWriteStats getWriteStats() {
+		final long[] latencies = new long[SettingWriteStats.LATENCY_BUCKETS];
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = COMMIT_LATENCIES.get(i);
+		}
+
+		final Map<String, Long> bytesWritten = new HashMap<String, Long>();
+		for (Shard shard : sShards) {
+			final PreferencesHolder holder = shard.preferences;
+			if (holder != null && holder.preferences instanceof LogSharedPreferences) {
+				bytesWritten.putAll(((LogSharedPreferences) holder.preferences).getBytesWritten());
+			}
+		}
+
+		return new SettingWriteStats(APPLY_COUNT.get(), COMMIT_COUNT.get(), FALLBACK_COUNT.get(), latencies,
+				bytesWritten);
+	}
+
+	public static void resetWriteStats() {
+		APPLY_COUNT.set(0);
+		COMMIT_COUNT.set(0);
+		FALLBACK_COUNT.set(0);
+		for (int i = 0; i < SettingWriteStats.LATENCY_BUCKETS; i++) {
+			COMMIT_LATENCIES.set(i, 0);
+		}
 	}
 }
@@ -0,0 +1,87 @@
+package com.michaelpardo.android.util;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Snapshot of SettingUtils write metrics.
+ *
+ * @see SettingUtils#getWriteStats()
+ */
+public class SettingWriteStats {
+	/**
+	 * Commit latencies are counted in buckets of powers of two microseconds: bucket 0 holds
+	 * commits under 1us and bucket i holds those from 2^(i-1) up to 2^i us. The last bucket also
+	 * holds everything slower.
+	 */
+	public static final int LATENCY_BUCKETS = 25;
+
+	private final long mApplyCount;
+	private final long mCommitCount;
+	private final long mFallbackCount;
+	private final long[] mCommitLatencies;
+	private final Map<String, Long> mBytesWritten;
+
+	SettingWriteStats(long applyCount, long commitCount, long fallbackCount, long[] commitLatencies,
+			Map<String, Long> bytesWritten) {
+
+		mApplyCount = applyCount;
+		mCommitCount = commitCount;
+		mFallbackCount = fallbackCount;
+		mCommitLatencies = commitLatencies;
+		mBytesWritten = Collections.unmodifiableMap(bytesWritten);
+	}
+
+	/**
+	 * Number of writes made with Editor.apply().
+	 */
+	public long getApplyCount() {
+		return mApplyCount;
+	}
+
+	/**
+	 * Number of writes made with the synchronous Editor.commit().
+	 */
+	public long getCommitCount() {
+		return mCommitCount;
+	}
+
+	/**
+	 * Number of commits made because calling Editor.apply() failed.
+	 */
+	public long getFallbackCount() {
+		return mFallbackCount;
+	}
+
+	/**
+	 * Returns the number of commits in each latency bucket.
+	 *
+	 * @see #LATENCY_BUCKETS
+	 */
+	public long[] getCommitLatencies() {
+		return mCommitLatencies.clone();
+	}
+
+	/**
+	 * Returns the bytes written for each key, for storage that reports them. Empty otherwise.
+	 */
+	public Map<String, Long> getBytesWritten() {
+		return mBytesWritten;
+	}
+}
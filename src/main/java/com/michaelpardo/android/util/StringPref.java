@@ -0,0 +1,46 @@
+package com.michaelpardo.android.util;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.content.Context;
+
+public class StringPref extends Pref {
+	private final String mDefValue;
+	private volatile String mValue;
+
+	public StringPref(String key, String defValue) {
+		super(key);
+		mDefValue = defValue;
+		mValue = defValue;
+	}
+
+	public String get(Context context) {
+		ensureLoaded(context);
+		return mValue;
+	}
+
+	public void set(Context context, String value) {
+		ensureLoaded(context);
+		mValue = value;
+		SettingUtils.set(context, getKey(), value);
+	}
+
+	@Override
+	protected void load(Context context) {
+		mValue = SettingUtils.get(context, getKey(), mDefValue);
+	}
+}
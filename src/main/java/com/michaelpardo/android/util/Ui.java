@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.os.Build;
 import android.os.ResultReceiver;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
@@ -41,16 +42,78 @@ public class Ui {
 	private static final int MEDIUM = 64;
 	private static final int THIN = 128;
 
+	private static final int DEFAULT_BITMAP_POOL_SIZE = 4 * 1024 * 1024;
+
+	private static final BitmapPool BITMAP_POOL = new BitmapPool(DEFAULT_BITMAP_POOL_SIZE);
+
+	// Canvases aren't thread safe, so each drawing thread reuses its own.
+	private static final ThreadLocal<Canvas> CANVAS = new ThreadLocal<Canvas>() {
+		@Override
+		protected Canvas initialValue() {
+			return new Canvas();
+		}
+	};
+
 	public static Bitmap createBitmapFromView(View v) {
-		Bitmap bitmap = Bitmap.createBitmap(v.getWidth(), v.getHeight(), Bitmap.Config.ARGB_8888);
-		Canvas canvas = new Canvas(bitmap);
+		return createBitmapFromView(v, Bitmap.Config.ARGB_8888, 1f);
+	}
+
+	/**
+	 * Draws the view into a bitmap taken from the snapshot pool, scaled by the given factor. Pass
+	 * the bitmap to {@link #releaseBitmap(Bitmap)} once it's no longer needed so it can be reused.
+	 * RGB_565 has no alpha channel, so transparent parts of the view come out black.
+	 */
+	public static Bitmap createBitmapFromView(View v, Bitmap.Config config, float scale) {
+		if (scale <= 0) {
+			throw new IllegalArgumentException("scale <= 0");
+		}
+
+		if (v.getWidth() <= 0 || v.getHeight() <= 0) {
+			throw new IllegalArgumentException("View has not been laid out");
+		}
+
+		final int width = Math.max(1, Math.round(v.getWidth() * scale));
+		final int height = Math.max(1, Math.round(v.getHeight() * scale));
+
+		final Bitmap bitmap = BITMAP_POOL.get(width, height, config);
+		final Canvas canvas = CANVAS.get();
 
-		v.layout(v.getLeft(), v.getTop(), v.getRight(), v.getBottom());
-		v.draw(canvas);
+		canvas.setBitmap(bitmap);
+		canvas.save();
+		canvas.scale((float) width / v.getWidth(), (float) height / v.getHeight());
+
+		try {
+			v.layout(v.getLeft(), v.getTop(), v.getRight(), v.getBottom());
+			v.draw(canvas);
+		}
+		finally {
+			canvas.restore();
+
+			// Don't keep the bitmap reachable from the canvas. Detaching needs API 11.
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+				canvas.setBitmap(null);
+			}
+		}
 
 		return bitmap;
 	}
 
+	/**
+	 * Returns a bitmap from {@link #createBitmapFromView(View, Bitmap.Config, float)} to the pool.
+	 * It must not be used afterwards.
+	 */
+	public static void releaseBitmap(Bitmap bitmap) {
+		BITMAP_POOL.put(bitmap);
+	}
+
+	public static void setBitmapPoolSize(int maxSize) {
+		BITMAP_POOL.setMaxSize(maxSize);
+	}
+
+	public static BitmapPool getBitmapPool() {
+		return BITMAP_POOL;
+	}
+
 	public static <T extends View> T findView(Activity activity, int resId) {
 		return (T) activity.findViewById(resId);
 	}
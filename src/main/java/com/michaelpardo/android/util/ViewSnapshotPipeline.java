@@ -0,0 +1,364 @@
+package com.michaelpardo.android.util;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+
+/**
+ * Writes snapshots of views to image files without blocking the UI thread on compression. Views
+ * are drawn on the UI thread as they're submitted; compressing and writing happen on background
+ * threads. At most maxQueued drawn snapshots wait to be written. Once that many are waiting,
+ * submit() rejects new snapshots without drawing them, so a large batch never holds more than
+ * maxQueued bitmaps plus the ones being written. Callers with more views than that should pace
+ * their submits with {@link #hasCapacity()} and an {@link OnCapacityListener}.
+ */
+public class ViewSnapshotPipeline {
+	public interface OnSnapshotListener {
+		/**
+		 * Called on the UI thread once the file is complete.
+		 */
+		public void onSnapshotWritten(File file);
+
+		/**
+		 * Called on the UI thread if the file couldn't be written, including with a
+		 * RejectedExecutionException if the queue was full. Not called for cancelled snapshots.
+		 */
+		public void onSnapshotFailed(File file, Exception e);
+	}
+
+	public interface OnCapacityListener {
+		/**
+		 * Called on the UI thread whenever a queued snapshot starts writing or is cancelled,
+		 * freeing room for another one.
+		 */
+		public void onCapacityAvailable();
+	}
+
+	// Request states
+	private static final int QUEUED = 0;
+	private static final int WRITING = 1;
+	private static final int RELEASED = 2;
+
+	private final File mDirectory;
+	private final Bitmap.CompressFormat mFormat;
+	private final int mQuality;
+	private final Bitmap.Config mConfig;
+	private final float mScale;
+	private final int mMaxQueued;
+
+	private final ExecutorService mExecutor;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	// Drawn snapshots that haven't started writing.
+	private final AtomicInteger mQueuedCount = new AtomicInteger();
+
+	private volatile OnCapacityListener mCapacityListener;
+
+	public ViewSnapshotPipeline(File directory, Bitmap.CompressFormat format, int quality) {
+		this(directory, format, quality, Bitmap.Config.ARGB_8888, 1f, 4);
+	}
+
+	public ViewSnapshotPipeline(File directory, Bitmap.CompressFormat format, int quality, Bitmap.Config config,
+			float scale, int maxQueued) {
+
+		if (maxQueued <= 0) {
+			throw new IllegalArgumentException("maxQueued <= 0");
+		}
+
+		mDirectory = directory;
+		mFormat = format;
+		mQuality = quality;
+		mConfig = config;
+		mScale = scale;
+		mMaxQueued = maxQueued;
+
+		final String name = getClass().getSimpleName();
+		mExecutor = Executors.newFixedThreadPool(Math.min(maxQueued, Runtime.getRuntime().availableProcessors()),
+				new ThreadFactory() {
+					private int mCount;
+
+					@Override
+					public synchronized Thread newThread(Runnable runnable) {
+						final Thread thread = new Thread(runnable, name + " #" + ++mCount);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	public Future<File> submit(View view, String fileName) {
+		return submit(view, fileName, null);
+	}
+
+	/**
+	 * Draws the view and queues it to be written to fileName, relative to the pipeline's
+	 * directory. Must be called on the UI thread; the view isn't referenced after this returns.
+	 * If the queue is full, the view isn't drawn and the returned future fails with a
+	 * RejectedExecutionException, which is also passed to the listener.
+	 *
+	 * @throws IllegalArgumentException if the view has not been laid out
+	 */
+	public Future<File> submit(View view, String fileName, OnSnapshotListener listener) {
+		if (Looper.myLooper() != Looper.getMainLooper()) {
+			throw new IllegalStateException("Snapshots must be submitted on the UI thread");
+		}
+		if (mExecutor.isShutdown()) {
+			throw new IllegalStateException("Pipeline has been shut down");
+		}
+
+		final File file = new File(mDirectory, fileName);
+
+		if (!reserve()) {
+			return reject(file, listener);
+		}
+
+		final Bitmap bitmap;
+		try {
+			bitmap = Ui.createBitmapFromView(view, mConfig, mScale);
+		}
+		catch (RuntimeException e) {
+			mQueuedCount.decrementAndGet();
+			throw e;
+		}
+
+		final Request request = new Request(new Snapshot(bitmap, file), listener);
+		try {
+			mExecutor.execute(request);
+		}
+		catch (RejectedExecutionException e) {
+			// Shut down since the check above; gives back the slot and the bitmap.
+			request.cancel(false);
+			throw new IllegalStateException("Pipeline has been shut down");
+		}
+
+		return request;
+	}
+
+	/**
+	 * Returns whether a snapshot submitted now would be accepted.
+	 */
+	public boolean hasCapacity() {
+		return mQueuedCount.get() < mMaxQueued;
+	}
+
+	public void setOnCapacityListener(OnCapacityListener listener) {
+		mCapacityListener = listener;
+	}
+
+	/**
+	 * Stops accepting snapshots. Snapshots already submitted are still written.
+	 */
+	public void shutdown() {
+		mExecutor.shutdown();
+	}
+
+	private boolean reserve() {
+		while (true) {
+			final int count = mQueuedCount.get();
+			if (count >= mMaxQueued) {
+				return false;
+			}
+			if (mQueuedCount.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	private void unreserve() {
+		mQueuedCount.decrementAndGet();
+
+		final OnCapacityListener listener = mCapacityListener;
+		if (listener != null) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					listener.onCapacityAvailable();
+				}
+			});
+		}
+	}
+
+	private Future<File> reject(final File file, final OnSnapshotListener listener) {
+		final RejectedExecutionException exception = new RejectedExecutionException("Snapshot queue is full");
+
+		final FutureTask<File> future = new FutureTask<File>(new Callable<File>() {
+			@Override
+			public File call() {
+				throw exception;
+			}
+		});
+		future.run();
+
+		if (listener != null) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					listener.onSnapshotFailed(file, exception);
+				}
+			});
+		}
+
+		return future;
+	}
+
+	private void write(Bitmap bitmap, File file) throws IOException {
+		final File directory = file.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create " + directory);
+		}
+
+		// Unique, so requests for the same file don't write over each other's temp file. The
+		// prefix must be at least three characters long.
+		final File temp = File.createTempFile("." + file.getName() + ".", ".tmp", directory);
+		boolean success = false;
+
+		try {
+			final FileOutputStream stream = new FileOutputStream(temp);
+			try {
+				final FileChannel channel = stream.getChannel();
+				final OutputStream out = Channels.newOutputStream(channel);
+
+				if (!bitmap.compress(mFormat, mQuality, out)) {
+					throw new IOException("Unable to compress snapshot for " + file);
+				}
+
+				out.flush();
+				channel.force(false);
+			}
+			finally {
+				stream.close();
+			}
+
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to rename " + temp + " to " + file);
+			}
+			success = true;
+		}
+		finally {
+			if (!success) {
+				temp.delete();
+			}
+		}
+	}
+
+	private final class Snapshot implements Callable<File> {
+		final File file;
+		Bitmap bitmap;
+
+		Snapshot(Bitmap bitmap, File file) {
+			this.bitmap = bitmap;
+			this.file = file;
+		}
+
+		@Override
+		public File call() throws IOException {
+			write(bitmap, file);
+			return file;
+		}
+	}
+
+	private final class Request extends FutureTask<File> {
+		private final Snapshot mSnapshot;
+		private final OnSnapshotListener mListener;
+
+		// The bitmap and the queue slot belong to whichever thread moves the state out of QUEUED.
+		private final AtomicInteger mState = new AtomicInteger(QUEUED);
+
+		Request(Snapshot snapshot, OnSnapshotListener listener) {
+			super(snapshot);
+
+			mSnapshot = snapshot;
+			mListener = listener;
+		}
+
+		@Override
+		public void run() {
+			if (!mState.compareAndSet(QUEUED, WRITING)) {
+				return;
+			}
+
+			unreserve();
+
+			try {
+				super.run();
+			}
+			finally {
+				release();
+			}
+		}
+
+		@Override
+		protected void done() {
+			// Cancelled before it started writing. One that is writing releases its bitmap itself
+			// when the write ends.
+			if (mState.compareAndSet(QUEUED, RELEASED)) {
+				unreserve();
+				release();
+			}
+
+			if (mListener != null) {
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						notifyListener();
+					}
+				});
+			}
+		}
+
+		private void release() {
+			Ui.releaseBitmap(mSnapshot.bitmap);
+			mSnapshot.bitmap = null;
+		}
+
+		private void notifyListener() {
+			if (isCancelled()) {
+				return;
+			}
+
+			try {
+				mListener.onSnapshotWritten(get());
+			}
+			catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				mListener.onSnapshotFailed(mSnapshot.file, cause instanceof Exception ? (Exception) cause : e);
+			}
+			catch (InterruptedException e) {
+				// Done, so get() doesn't wait.
+			}
+		}
+	}
+}
@@ -0,0 +1,547 @@
+package com.michaelpardo.java.io;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Typed key/value store kept in memory and persisted as an append-only log in a memory-mapped
+ * file. A write appends one record holding only the changed entries, so its cost depends on the
+ * size of the change rather than the size of the store. Records are framed with a length and a
+ * CRC32; on open, the log is replayed up to the first incomplete or corrupt record and anything
+ * after it is discarded. {@link #compact()} rewrites the live entries to a temporary file and
+ * renames it over the log.
+ * <p>
+ * Values are Boolean, Integer, Long, Float, String or Set&lt;String&gt;. Reads don't lock.
+ */
+public final class LogStore implements Closeable {
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CONSTANTS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int MAGIC = 0x534c4f47;
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	private static final int MAP_INCREMENT = 16 * 1024;
+
+	// The log is worth compacting once it's this large and mostly overwritten entries.
+	private static final int MIN_COMPACT_SIZE = 64 * 1024;
+	private static final int COMPACT_RATIO = 2;
+
+	private static final byte CLEAR = 0;
+	private static final byte REMOVE = 1;
+	private static final byte BOOLEAN = 2;
+	private static final byte INT = 3;
+	private static final byte LONG = 4;
+	private static final byte FLOAT = 5;
+	private static final byte STRING = 6;
+	private static final byte STRING_SET = 7;
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE MEMBERS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private final File mFile;
+	private final File mTempFile;
+
+	private final Map<String, Object> mValues = new ConcurrentHashMap<String, Object>();
+
+	// Encoded size of each live entry, to tell how much of the log is overwritten.
+	private final Map<String, Integer> mSizes = new HashMap<String, Integer>();
+	private long mLiveSize;
+
+	private final Map<String, Long> mBytesWritten = new HashMap<String, Long>();
+
+	private RandomAccessFile mRandomAccessFile;
+	private MappedByteBuffer mBuffer;
+	private int mEnd;
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Opens the log, creating it if needed, and replays it.
+	 */
+	public LogStore(File file) throws IOException {
+		mFile = file;
+		mTempFile = new File(file.getPath() + ".tmp");
+
+		// Left over from a compaction that didn't finish; the log itself is still intact.
+		mTempFile.delete();
+
+		map();
+		recover();
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	public Object get(String key) {
+		return mValues.get(key);
+	}
+
+	public boolean contains(String key) {
+		return mValues.containsKey(key);
+	}
+
+	public Map<String, Object> getAll() {
+		return new HashMap<String, Object>(mValues);
+	}
+
+	public int size() {
+		return mValues.size();
+	}
+
+	/**
+	 * Appends the changes as one record and applies them. A null value removes the key; if clear
+	 * is set, every key is removed before the changes are applied. The record is forced to disk
+	 * if sync is set; otherwise it's in the page cache and survives the process but not
+	 * necessarily the device. Returns the keys whose value changed.
+	 */
+	public synchronized List<String> write(Map<String, ?> changes, boolean clear, boolean sync) throws IOException {
+		ensureOpen();
+
+		final Encoder encoder = new Encoder();
+		if (clear) {
+			encoder.writeByte(CLEAR);
+		}
+		for (Map.Entry<String, ?> change : changes.entrySet()) {
+			final int start = encoder.size();
+			encoder.writeEntry(change.getKey(), change.getValue());
+			countBytes(change.getKey(), encoder.size() - start);
+		}
+
+		// An empty record would read as the end of the log.
+		if (encoder.size() == 0) {
+			return Collections.emptyList();
+		}
+
+		final List<String> changed = new ArrayList<String>(changes.size());
+		for (Map.Entry<String, ?> change : changes.entrySet()) {
+			final Object value = change.getValue();
+			if (value != null ? !value.equals(mValues.get(change.getKey())) : mValues.containsKey(change.getKey())) {
+				changed.add(change.getKey());
+			}
+		}
+
+		final int start = append(encoder.getBuffer(), encoder.size());
+		if (sync) {
+			mBuffer.force();
+		}
+
+		replay(start + RECORD_HEADER_SIZE, encoder.size());
+
+		return changed;
+	}
+
+	/**
+	 * Returns the number of bytes appended for each key since the log was opened, not counting
+	 * record framing or compaction.
+	 */
+	public synchronized Map<String, Long> getBytesWritten() {
+		return new HashMap<String, Long>(mBytesWritten);
+	}
+
+	/**
+	 * Whether most of the log is overwritten entries and {@link #compact()} would shrink it.
+	 */
+	public synchronized boolean needsCompaction() {
+		return mEnd >= MIN_COMPACT_SIZE && mEnd > COMPACT_RATIO * (HEADER_SIZE + RECORD_HEADER_SIZE + mLiveSize);
+	}
+
+	/**
+	 * Rewrites the log with only the live entries. The new log is written and synced to a
+	 * temporary file which is then renamed over the old one, so a crash leaves one or the other.
+	 */
+	public synchronized void compact() throws IOException {
+		ensureOpen();
+
+		final Encoder encoder = new Encoder();
+		for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+			encoder.writeEntry(entry.getKey(), entry.getValue());
+		}
+
+		// A zero-length record reads as the end of the log, so an empty store is just the header.
+		final int recordSize = encoder.size() > 0 ? RECORD_HEADER_SIZE + encoder.size() : 0;
+
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + RECORD_HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION);
+		if (recordSize > 0) {
+			header.putInt(encoder.size()).putInt(crc(encoder.getBuffer(), 0, encoder.size()));
+		}
+		header.flip();
+
+		final FileOutputStream out = new FileOutputStream(mTempFile);
+		try {
+			final FileChannel channel = out.getChannel();
+			final ByteBuffer payload = ByteBuffer.wrap(encoder.getBuffer(), 0, encoder.size());
+			while (header.hasRemaining() || payload.hasRemaining()) {
+				channel.write(new ByteBuffer[] { header, payload });
+			}
+			channel.force(true);
+		}
+		finally {
+			out.close();
+		}
+
+		if (!mTempFile.renameTo(mFile)) {
+			mTempFile.delete();
+			throw new IOException("Failed to rename " + mTempFile + " to " + mFile);
+		}
+
+		// The entries in memory are what was just written; only the mapping changes.
+		unmap();
+		map();
+		mEnd = HEADER_SIZE + recordSize;
+	}
+
+	public long getFileSize() {
+		return mFile.length();
+	}
+
+	/**
+	 * Closes the file. Values stay readable; writes fail.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		unmap();
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private void map() throws IOException {
+		mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+
+		final long size = mRandomAccessFile.length();
+		if (size > Integer.MAX_VALUE - MAP_INCREMENT) {
+			unmap();
+			throw new IOException("Log too large: " + mFile);
+		}
+
+		mapRegion(Math.max((int) size, MAP_INCREMENT));
+	}
+
+	private void mapRegion(int minSize) throws IOException {
+		final int size = (minSize + MAP_INCREMENT - 1) / MAP_INCREMENT * MAP_INCREMENT;
+		mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	private void unmap() throws IOException {
+		mBuffer = null;
+
+		if (mRandomAccessFile != null) {
+			final RandomAccessFile randomAccessFile = mRandomAccessFile;
+			mRandomAccessFile = null;
+			randomAccessFile.close();
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (mBuffer == null) {
+			throw new IOException("Log is closed: " + mFile);
+		}
+	}
+
+	private void recover() throws IOException {
+		final int magic = mBuffer.getInt(0);
+		if (magic == 0) {
+			// New file, or one that was never fully created.
+			mBuffer.putInt(0, MAGIC);
+			mBuffer.putInt(4, VERSION);
+			mEnd = HEADER_SIZE;
+			return;
+		}
+		if (magic != MAGIC || mBuffer.getInt(4) != VERSION) {
+			unmap();
+			throw new IOException("Not a version " + VERSION + " log: " + mFile);
+		}
+
+		final int limit = mBuffer.capacity();
+		int position = HEADER_SIZE;
+
+		while (position <= limit - RECORD_HEADER_SIZE) {
+			final int length = mBuffer.getInt(position);
+			if (length <= 0 || length > limit - position - RECORD_HEADER_SIZE) {
+				break;
+			}
+
+			final int crc = mBuffer.getInt(position + 4);
+			final byte[] payload = new byte[length];
+			final ByteBuffer record = mBuffer.duplicate();
+			record.position(position + RECORD_HEADER_SIZE);
+			record.get(payload);
+
+			if (crc(payload, 0, length) != crc) {
+				break;
+			}
+
+			replay(position + RECORD_HEADER_SIZE, length);
+			position += RECORD_HEADER_SIZE + length;
+		}
+
+		mEnd = position;
+
+		// Zero whatever follows the last good record, so a later shorter record can't be followed
+		// by the remains of a discarded one.
+		boolean dirty = false;
+		for (int i = position; i < limit; i++) {
+			if (mBuffer.get(i) != 0) {
+				mBuffer.put(i, (byte) 0);
+				dirty = true;
+			}
+		}
+		if (dirty) {
+			mBuffer.force();
+		}
+	}
+
+	private int append(byte[] payload, int length) throws IOException {
+		final int start = mEnd;
+		final int end = start + RECORD_HEADER_SIZE + length;
+
+		if (end < 0 || end > Integer.MAX_VALUE - MAP_INCREMENT) {
+			throw new IOException("Log too large: " + mFile);
+		}
+		if (end > mBuffer.capacity()) {
+			mapRegion(Math.max(end, mBuffer.capacity() * 2));
+		}
+
+		final ByteBuffer buffer = mBuffer.duplicate();
+		buffer.position(start + RECORD_HEADER_SIZE);
+		buffer.put(payload, 0, length);
+
+		// The length goes in last; until then, the record reads as the end of the log.
+		mBuffer.putInt(start + 4, crc(payload, 0, length));
+		mBuffer.putInt(start, length);
+
+		mEnd = end;
+		return start;
+	}
+
+	private void replay(int position, int length) throws IOException {
+		final ByteBuffer buffer = mBuffer.duplicate();
+		buffer.position(position);
+		buffer.limit(position + length);
+
+		try {
+			while (buffer.hasRemaining()) {
+				final int start = buffer.position();
+				final byte type = buffer.get();
+
+				if (type == CLEAR) {
+					mValues.clear();
+					mSizes.clear();
+					mLiveSize = 0;
+					continue;
+				}
+
+				final String key = readString(buffer);
+				final Object value;
+
+				switch (type) {
+				case REMOVE:
+					value = null;
+					break;
+				case BOOLEAN:
+					value = Boolean.valueOf(buffer.get() != 0);
+					break;
+				case INT:
+					value = Integer.valueOf(buffer.getInt());
+					break;
+				case LONG:
+					value = Long.valueOf(buffer.getLong());
+					break;
+				case FLOAT:
+					value = Float.valueOf(buffer.getFloat());
+					break;
+				case STRING:
+					value = readString(buffer);
+					break;
+				case STRING_SET:
+					final int count = buffer.getInt();
+					final Set<String> set = new HashSet<String>(count * 2);
+					for (int i = 0; i < count; i++) {
+						set.add(readString(buffer));
+					}
+					value = Collections.unmodifiableSet(set);
+					break;
+				default:
+					throw new IOException("Unknown entry type " + type + " in " + mFile);
+				}
+
+				final Integer oldSize = value != null ? mSizes.put(key, buffer.position() - start) : mSizes.remove(key);
+				if (oldSize != null) {
+					mLiveSize -= oldSize;
+				}
+
+				if (value != null) {
+					mValues.put(key, value);
+					mLiveSize += buffer.position() - start;
+				}
+				else {
+					mValues.remove(key);
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			// Only reachable with a record that passed its CRC but doesn't decode.
+			throw (IOException) new IOException("Malformed record in " + mFile).initCause(e);
+		}
+	}
+
+	private void countBytes(String key, int count) {
+		final Long bytes = mBytesWritten.get(key);
+		mBytesWritten.put(key, bytes != null ? bytes + count : count);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		final int length = buffer.getInt();
+		final ByteBuffer bytes = buffer.slice();
+		bytes.limit(length);
+		buffer.position(buffer.position() + length);
+
+		return UTF_8.decode(bytes).toString();
+	}
+
+	private static int crc(byte[] bytes, int offset, int length) {
+		final CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CLASSES
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final class Encoder {
+		private byte[] mBuffer = new byte[256];
+		private int mSize;
+
+		byte[] getBuffer() {
+			return mBuffer;
+		}
+
+		int size() {
+			return mSize;
+		}
+
+		void writeEntry(String key, Object value) {
+			if (value == null) {
+				writeByte(REMOVE);
+				writeString(key);
+			}
+			else if (value instanceof Boolean) {
+				writeByte(BOOLEAN);
+				writeString(key);
+				writeByte((Boolean) value ? (byte) 1 : (byte) 0);
+			}
+			else if (value instanceof Integer) {
+				writeByte(INT);
+				writeString(key);
+				writeInt((Integer) value);
+			}
+			else if (value instanceof Long) {
+				writeByte(LONG);
+				writeString(key);
+				writeLong((Long) value);
+			}
+			else if (value instanceof Float) {
+				writeByte(FLOAT);
+				writeString(key);
+				writeInt(Float.floatToIntBits((Float) value));
+			}
+			else if (value instanceof String) {
+				writeByte(STRING);
+				writeString(key);
+				writeString((String) value);
+			}
+			else if (value instanceof Set) {
+				final Set<?> set = (Set<?>) value;
+				writeByte(STRING_SET);
+				writeString(key);
+				writeInt(set.size());
+				for (Object element : set) {
+					writeString((String) element);
+				}
+			}
+			else {
+				throw new IllegalArgumentException("Unsupported value type for " + key + ": " + value.getClass());
+			}
+		}
+
+		void writeByte(byte value) {
+			ensureCapacity(1);
+			mBuffer[mSize++] = value;
+		}
+
+		void writeInt(int value) {
+			ensureCapacity(4);
+			mBuffer[mSize++] = (byte) (value >>> 24);
+			mBuffer[mSize++] = (byte) (value >>> 16);
+			mBuffer[mSize++] = (byte) (value >>> 8);
+			mBuffer[mSize++] = (byte) value;
+		}
+
+		void writeLong(long value) {
+			writeInt((int) (value >>> 32));
+			writeInt((int) value);
+		}
+
+		void writeString(String value) {
+			final ByteBuffer bytes = UTF_8.encode(value);
+			final int length = bytes.remaining();
+			writeInt(length);
+			ensureCapacity(length);
+			bytes.get(mBuffer, mSize, length);
+			mSize += length;
+		}
+
+		private void ensureCapacity(int count) {
+			if (mSize + count > mBuffer.length) {
+				final byte[] buffer = new byte[Math.max(mBuffer.length * 2, mSize + count)];
+				System.arraycopy(mBuffer, 0, buffer, 0, mSize);
+				mBuffer = buffer;
+			}
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package com.michaelpardo.java.text;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Formats and parses arrays of timestamps with a ThreadSafeSimpleDateFormat. Large inputs are
+ * split into chunks that run on a shared pool sized to the number of cores. The output is the
+ * same as calling the formatter once per element.
+ */
+public final class BulkDateFormat {
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CONSTANTS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final int PARALLEL_THRESHOLD = 4096;
+	private static final int MIN_CHUNK_SIZE = 1024;
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE MEMBERS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static ExecutorService sExecutor;
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private BulkDateFormat() {
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Appends every timestamp to the output, separated by the separator.
+	 */
+	public static void format(final ThreadSafeSimpleDateFormat format, final long[] millis,
+			final CharSequence separator, Appendable out) throws IOException {
+
+		final int chunkCount = getChunkCount(millis.length);
+		if (chunkCount == 1) {
+			if (out instanceof StringBuilder) {
+				formatRange(format, millis, 0, millis.length, separator, (StringBuilder) out);
+			}
+			else {
+				final StringBuilder builder = new StringBuilder();
+				formatRange(format, millis, 0, millis.length, separator, builder);
+				out.append(builder);
+			}
+			return;
+		}
+
+		final List<Future<StringBuilder>> futures = new ArrayList<Future<StringBuilder>>(chunkCount);
+		for (int i = 0; i < chunkCount; i++) {
+			final int start = chunkStart(millis.length, chunkCount, i);
+			final int end = chunkStart(millis.length, chunkCount, i + 1);
+
+			futures.add(getExecutor().submit(new Callable<StringBuilder>() {
+				@Override
+				public StringBuilder call() {
+					final StringBuilder builder = new StringBuilder();
+					formatRange(format, millis, start, end, separator, builder);
+					return builder;
+				}
+			}));
+		}
+
+		for (int i = 0; i < chunkCount; i++) {
+			if (i > 0) {
+				out.append(separator);
+			}
+
+			try {
+				out.append(await(futures.get(i)));
+			}
+			catch (ExecutionException e) {
+				throw unchecked(e.getCause());
+			}
+		}
+	}
+
+	public static long[] parse(ThreadSafeSimpleDateFormat format, CharSequence[] texts) throws ParseException {
+		final long[] millis = new long[texts.length];
+		parse(format, texts, millis);
+
+		return millis;
+	}
+
+	/**
+	 * Parses every text into the matching index of the output array. If any text fails to
+	 * parse, the exception for the lowest failing index is thrown.
+	 */
+	public static void parse(final ThreadSafeSimpleDateFormat format, final CharSequence[] texts, final long[] out)
+			throws ParseException {
+
+		final int chunkCount = getChunkCount(texts.length);
+		if (chunkCount == 1) {
+			parseRange(format, texts, 0, texts.length, out);
+			return;
+		}
+
+		// A chunk claims its slot before writing anything, so a failing batch can tell chunks that
+		// will never write from ones that must be waited for.
+		final AtomicBoolean stopped = new AtomicBoolean();
+		final AtomicIntegerArray claimed = new AtomicIntegerArray(chunkCount);
+
+		final List<Future<Void>> futures = new ArrayList<Future<Void>>(chunkCount);
+		for (int i = 0; i < chunkCount; i++) {
+			final int chunk = i;
+			final int start = chunkStart(texts.length, chunkCount, i);
+			final int end = chunkStart(texts.length, chunkCount, i + 1);
+
+			futures.add(getExecutor().submit(new Callable<Void>() {
+				@Override
+				public Void call() throws ParseException {
+					if (claimed.compareAndSet(chunk, 0, 1)) {
+						parseRange(format, texts, start, end, out, stopped);
+					}
+					return null;
+				}
+			}));
+		}
+
+		for (int i = 0; i < chunkCount; i++) {
+			try {
+				await(futures.get(i));
+			}
+			catch (ExecutionException e) {
+				stop(futures, claimed, stopped, i + 1);
+
+				if (e.getCause() instanceof ParseException) {
+					throw (ParseException) e.getCause();
+				}
+				throw unchecked(e.getCause());
+			}
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static void formatRange(ThreadSafeSimpleDateFormat format, long[] millis, int start, int end,
+			CharSequence separator, StringBuilder builder) {
+
+		for (int i = start; i < end; i++) {
+			if (i > start) {
+				builder.append(separator);
+			}
+			format.format(millis[i], builder);
+		}
+	}
+
+	private static void parseRange(ThreadSafeSimpleDateFormat format, CharSequence[] texts, int start, int end,
+			long[] out) throws ParseException {
+
+		for (int i = start; i < end; i++) {
+			out[i] = format.parseMillis(texts[i]);
+		}
+	}
+
+	private static void parseRange(ThreadSafeSimpleDateFormat format, CharSequence[] texts, int start, int end,
+			long[] out, AtomicBoolean stopped) throws ParseException {
+
+		for (int i = start; i < end && !stopped.get(); i++) {
+			out[i] = format.parseMillis(texts[i]);
+		}
+	}
+
+	/**
+	 * Cancels the chunks from the given index on. Chunks that already started stop at their next
+	 * text and are waited for, so none of them writes to the output array after the caller throws.
+	 */
+	private static void stop(List<Future<Void>> futures, AtomicIntegerArray claimed, AtomicBoolean stopped,
+			int from) {
+
+		stopped.set(true);
+
+		for (int i = from; i < futures.size(); i++) {
+			if (claimed.compareAndSet(i, 0, 1)) {
+				// Never started, and now never will write.
+				futures.get(i).cancel(true);
+				continue;
+			}
+
+			try {
+				await(futures.get(i));
+			}
+			catch (ExecutionException ignored) {
+				// Only the first failure is reported.
+			}
+		}
+	}
+
+	private static int getChunkCount(int length) {
+		final int processors = Runtime.getRuntime().availableProcessors();
+		if (length < PARALLEL_THRESHOLD || processors == 1) {
+			return 1;
+		}
+
+		// A few chunks per core so a slow core doesn't hold up the whole batch.
+		return Math.max(1, Math.min(processors * 4, length / MIN_CHUNK_SIZE));
+	}
+
+	private static int chunkStart(int length, int chunkCount, int chunk) {
+		return (int) ((long) length * chunk / chunkCount);
+	}
+
+	private static <T> T await(Future<T> future) throws ExecutionException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static RuntimeException unchecked(Throwable throwable) {
+		if (throwable instanceof Error) {
+			throw (Error) throwable;
+		}
+		if (throwable instanceof RuntimeException) {
+			return (RuntimeException) throwable;
+		}
+		return new RuntimeException(throwable);
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				private int mCount;
+
+				@Override
+				public synchronized Thread newThread(Runnable runnable) {
+					final Thread thread = new Thread(runnable, "BulkDateFormat #" + ++mCount);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		return sExecutor;
+	}
+}
@@ -0,0 +1,172 @@
+package com.michaelpardo.java.text;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Date;
+
+/**
+ * Formats nearly increasing timestamps, such as log times, by caching the text rendered for the
+ * current second (or minute, if the pattern has no seconds) and only patching the millisecond
+ * digits while following timestamps fall in the same window. Safe to use from many threads.
+ */
+public class CachedDateFormat {
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE MEMBERS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private final ThreadSafeSimpleDateFormat mDateFormat;
+	private final CompiledDateFormat mCompiledFormat;
+	private final long mWindowLength;
+
+	private volatile Window mWindow;
+
+	private final ThreadLocal<char[]> mBuffers = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[mCompiledFormat.getMaxLength()];
+		}
+	};
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	public CachedDateFormat(String format) {
+		this(new ThreadSafeSimpleDateFormat(format, true));
+	}
+
+	public CachedDateFormat(ThreadSafeSimpleDateFormat dateFormat) {
+		mDateFormat = dateFormat;
+
+		final CompiledDateFormat compiledFormat = dateFormat.getCompiledFormat();
+		if (compiledFormat != null && compiledFormat.getCacheWindow() > 0) {
+			mCompiledFormat = compiledFormat;
+			mWindowLength = compiledFormat.getCacheWindow();
+		}
+		else {
+			mCompiledFormat = null;
+			mWindowLength = 0;
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns false if the pattern can't be patched in place, in which case every call is
+	 * delegated to the underlying ThreadSafeSimpleDateFormat.
+	 */
+	public boolean isCached() {
+		return mCompiledFormat != null;
+	}
+
+	public String format(Date date) {
+		return format(date.getTime());
+	}
+
+	public String format(long millis) {
+		if (mCompiledFormat == null || !mCompiledFormat.canFormat(millis)) {
+			return mDateFormat.format(millis);
+		}
+
+		final char[] buffer = mBuffers.get();
+		return new String(buffer, 0, format(millis, buffer, 0));
+	}
+
+	public void format(long millis, StringBuilder builder) {
+		if (mCompiledFormat == null || !mCompiledFormat.canFormat(millis)) {
+			mDateFormat.format(millis, builder);
+			return;
+		}
+
+		final char[] buffer = mBuffers.get();
+		builder.append(buffer, 0, format(millis, buffer, 0));
+	}
+
+	/**
+	 * Writes the formatted value into the buffer and returns the offset just past the last
+	 * character written.
+	 */
+	public int format(long millis, char[] buffer, int offset) {
+		if (mCompiledFormat == null || !mCompiledFormat.canFormat(millis)) {
+			return mDateFormat.format(millis, buffer, offset);
+		}
+
+		Window window = mWindow;
+		if (window == null || millis < window.start || millis >= window.end) {
+			window = render(millis);
+			mWindow = window;
+		}
+
+		System.arraycopy(window.chars, 0, buffer, offset, window.length);
+
+		final int millisecond = (int) (millis - window.start) % 1000;
+		final int[] widths = mCompiledFormat.getMillisecondWidths();
+		for (int i = 0; i < widths.length; i++) {
+			CompiledDateFormat.writeNumber(millisecond, widths[i], buffer, offset + window.millisecondPositions[i]);
+		}
+
+		return offset + window.length;
+	}
+
+	public int getMaxLength() {
+		return mDateFormat.getMaxLength();
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private Window render(long millis) {
+		// Windows are aligned to local time, which only differs from UTC alignment for zones
+		// with sub-minute offsets. Offsets change on whole seconds, so a second never straddles
+		// a transition.
+		final long local = millis + mCompiledFormat.getOffset(millis);
+		long remainder = local % mWindowLength;
+		if (remainder < 0) {
+			remainder += mWindowLength;
+		}
+
+		final long start = millis - remainder;
+		final char[] chars = new char[mCompiledFormat.getMaxLength()];
+		final int[] positions = new int[mCompiledFormat.getMillisecondWidths().length];
+		final int length = mCompiledFormat.format(start, chars, 0, positions);
+
+		return new Window(start, start + mWindowLength, chars, length, positions);
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CLASSES
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final class Window {
+		final long start;
+		final long end;
+		final char[] chars;
+		final int length;
+		final int[] millisecondPositions;
+
+		Window(long start, long end, char[] chars, int length, int[] millisecondPositions) {
+			this.start = start;
+			this.end = end;
+			this.chars = chars;
+			this.length = length;
+			this.millisecondPositions = millisecondPositions;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package com.michaelpardo.java.text;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of parse results in front of a ThreadSafeSimpleDateFormat, for feeds that
+ * repeat the same timestamp strings. Results are stored as primitive millis in a fixed size
+ * table where each string may live in one of two slots; a new string evicts one of the strings
+ * in its slots once both are taken. Every call returns a new Date, so cached values are never
+ * shared.
+ */
+public class CachingDateParser {
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE MEMBERS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private final ThreadSafeSimpleDateFormat mDateFormat;
+
+	// Entries are immutable, so they can be read and replaced without locking.
+	private final Entry[] mEntries;
+	private final int mMask;
+
+	private final AtomicLong mHitCount = new AtomicLong();
+	private final AtomicLong mMissCount = new AtomicLong();
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * The size is rounded up to a power of two.
+	 */
+	public CachingDateParser(ThreadSafeSimpleDateFormat dateFormat, int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+
+		int capacity = 1;
+		while (capacity < maxSize) {
+			capacity <<= 1;
+		}
+
+		mDateFormat = dateFormat;
+		mEntries = new Entry[capacity];
+		mMask = capacity - 1;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	public Date parse(CharSequence text) throws ParseException {
+		return new Date(parseMillis(text));
+	}
+
+	public long parseMillis(CharSequence text) throws ParseException {
+		final int hash = hash(text);
+		final int first = hash & mMask;
+		final int second = (first + 1) & mMask;
+
+		final Entry firstEntry = mEntries[first];
+		if (firstEntry != null && firstEntry.matches(text, hash)) {
+			mHitCount.incrementAndGet();
+			return firstEntry.millis;
+		}
+
+		final Entry secondEntry = mEntries[second];
+		if (secondEntry != null && secondEntry.matches(text, hash)) {
+			mHitCount.incrementAndGet();
+			return secondEntry.millis;
+		}
+
+		mMissCount.incrementAndGet();
+
+		final long millis = mDateFormat.parseMillis(text);
+		final Entry entry = new Entry(text.toString(), hash, millis);
+
+		if (firstEntry == null) {
+			mEntries[first] = entry;
+		}
+		else if (secondEntry == null) {
+			mEntries[second] = entry;
+		}
+		else {
+			mEntries[(hash & (mMask + 1)) == 0 ? first : second] = entry;
+		}
+
+		return millis;
+	}
+
+	public int getMaxSize() {
+		return mEntries.length;
+	}
+
+	public long getHitCount() {
+		return mHitCount.get();
+	}
+
+	public long getMissCount() {
+		return mMissCount.get();
+	}
+
+	public float getHitRate() {
+		final long hits = mHitCount.get();
+		final long total = hits + mMissCount.get();
+
+		return total > 0 ? (float) hits / total : 0f;
+	}
+
+	public void clear() {
+		for (int i = 0; i < mEntries.length; i++) {
+			mEntries[i] = null;
+		}
+
+		mHitCount.set(0);
+		mMissCount.set(0);
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static int hash(CharSequence text) {
+		int hash;
+		if (text instanceof String) {
+			hash = text.hashCode();
+		}
+		else {
+			hash = 0;
+			for (int i = 0, length = text.length(); i < length; i++) {
+				hash = 31 * hash + text.charAt(i);
+			}
+		}
+
+		// The table index only uses the low bits; fold the high ones in.
+		return hash ^ (hash >>> 16);
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CLASSES
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final class Entry {
+		final String text;
+		final int hash;
+		final long millis;
+
+		Entry(String text, int hash, long millis) {
+			this.text = text;
+			this.hash = hash;
+			this.millis = millis;
+		}
+
+		boolean matches(CharSequence other, int otherHash) {
+			return hash == otherHash && text.contentEquals(other);
+		}
+	}
+}
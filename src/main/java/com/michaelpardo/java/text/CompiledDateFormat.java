@@ -0,0 +1,579 @@
+package com.michaelpardo.java.text;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.text.DateFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import com.michaelpardo.java.util.ZoneOffsetCache;
+
+/**
+ * A SimpleDateFormat pattern compiled into a fixed list of field emitters. Formatting converts
+ * epoch millis to calendar fields with integer arithmetic and writes the result straight into a
+ * char buffer, without touching a Calendar or allocating.
+ */
+final class CompiledDateFormat {
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CONSTANTS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+
+	private static final int[] DAYS_BEFORE_MONTH = { 0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334 };
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE MEMBERS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private final String mPattern;
+	private final ZoneOffsetCache mZoneOffsets;
+	private final Emitter[] mEmitters;
+	private final int mMaxLength;
+	private final int[] mMillisecondWidths;
+	private final long mCacheWindow;
+
+	private final ThreadLocal<Scratch> mScratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch(mMaxLength);
+		}
+	};
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private CompiledDateFormat(String pattern, TimeZone timeZone, Emitter[] emitters) {
+		mPattern = pattern;
+		mZoneOffsets = new ZoneOffsetCache(timeZone);
+		mEmitters = emitters;
+
+		int maxLength = 0;
+		int millisecondCount = 0;
+		boolean hasSeconds = false;
+		boolean fixedMilliseconds = true;
+
+		for (Emitter emitter : emitters) {
+			maxLength += emitter.getMaxLength();
+
+			if (emitter instanceof NumberEmitter) {
+				final NumberEmitter numberEmitter = (NumberEmitter) emitter;
+				if (numberEmitter.mField == DatePatterns.MILLISECOND) {
+					millisecondCount++;
+					fixedMilliseconds &= numberEmitter.mMinDigits >= 3;
+				}
+				else if (numberEmitter.mField == DatePatterns.SECOND) {
+					hasSeconds = true;
+				}
+			}
+		}
+
+		mMaxLength = maxLength;
+		mMillisecondWidths = new int[millisecondCount];
+
+		int index = 0;
+		for (Emitter emitter : emitters) {
+			if (emitter instanceof NumberEmitter && ((NumberEmitter) emitter).mField == DatePatterns.MILLISECOND) {
+				mMillisecondWidths[index++] = ((NumberEmitter) emitter).mMinDigits;
+			}
+		}
+
+		// Everything but fixed width millisecond fields is constant within a second, or within a
+		// minute if the pattern doesn't show seconds at all.
+		if (!fixedMilliseconds) {
+			mCacheWindow = 0;
+		}
+		else if (hasSeconds || millisecondCount > 0) {
+			mCacheWindow = 1000;
+		}
+		else {
+			mCacheWindow = 60000;
+		}
+	}
+
+	/**
+	 * Compiles the pattern, symbols and time zone of the given format, which must have been created
+	 * for the given locale. Returns null if the pattern uses a field this engine doesn't produce
+	 * identically to SimpleDateFormat, or if the format doesn't use a plain GregorianCalendar.
+	 */
+	public static CompiledDateFormat compile(SimpleDateFormat format, final Locale locale) {
+		if (!DatePatterns.isSupported(format)) {
+			return null;
+		}
+
+		final String pattern = format.toPattern();
+		final DateFormatSymbols symbols = format.getDateFormatSymbols();
+		final TimeZone timeZone = (TimeZone) format.getTimeZone().clone();
+		final List<Emitter> emitters = new ArrayList<Emitter>();
+		final StringBuilder literal = new StringBuilder();
+
+		final boolean compiled = DatePatterns.tokenize(pattern, new DatePatterns.Visitor() {
+			@Override
+			public void onLiteral(char c) {
+				literal.append(c);
+			}
+
+			@Override
+			public boolean onField(char c, int count) {
+				if (literal.length() > 0) {
+					emitters.add(new LiteralEmitter(literal.toString()));
+					literal.setLength(0);
+				}
+
+				final Emitter emitter = createEmitter(c, count, symbols, locale, timeZone);
+				if (emitter == null) {
+					return false;
+				}
+
+				emitters.add(emitter);
+				return true;
+			}
+		});
+
+		if (!compiled) {
+			return null;
+		}
+
+		if (literal.length() > 0) {
+			emitters.add(new LiteralEmitter(literal.toString()));
+		}
+
+		return new CompiledDateFormat(pattern, timeZone, emitters.toArray(new Emitter[emitters.size()]));
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	public String getPattern() {
+		return mPattern;
+	}
+
+	public int getMaxLength() {
+		return mMaxLength;
+	}
+
+	public boolean canFormat(long millis) {
+		return millis >= DatePatterns.GREGORIAN_CUTOVER;
+	}
+
+	/**
+	 * Returns the length of the local time window in which only millisecond fields change, or 0
+	 * if the formatted text can't be patched in place.
+	 */
+	public long getCacheWindow() {
+		return mCacheWindow;
+	}
+
+	/**
+	 * Returns the zero padded widths of the millisecond fields, in pattern order.
+	 */
+	public int[] getMillisecondWidths() {
+		return mMillisecondWidths;
+	}
+
+	public int getOffset(long millis) {
+		return mZoneOffsets.getOffset(millis);
+	}
+
+	public String format(long millis) {
+		final char[] chars = mScratch.get().chars;
+		return new String(chars, 0, format(millis, chars, 0));
+	}
+
+	public void format(long millis, StringBuilder builder) {
+		final char[] chars = mScratch.get().chars;
+		builder.append(chars, 0, format(millis, chars, 0));
+	}
+
+	public void format(long millis, Appendable appendable) throws IOException {
+		if (appendable instanceof StringBuilder) {
+			format(millis, (StringBuilder) appendable);
+			return;
+		}
+
+		final char[] chars = mScratch.get().chars;
+		final int length = format(millis, chars, 0);
+		for (int i = 0; i < length; i++) {
+			appendable.append(chars[i]);
+		}
+	}
+
+	/**
+	 * Writes the formatted value into the buffer at the offset and returns the offset just past
+	 * the last character written. The buffer needs at most {@link #getMaxLength()} free chars.
+	 */
+	public int format(long millis, char[] buffer, int offset) {
+		return format(millis, buffer, offset, null);
+	}
+
+	/**
+	 * Like {@link #format(long, char[], int)}, additionally storing the position of each
+	 * millisecond field in the given array if it isn't null.
+	 */
+	public int format(long millis, char[] buffer, int offset, int[] millisecondPositions) {
+		final int[] fields = mScratch.get().fields;
+		computeFields(millis, fields);
+
+		int position = offset;
+		int index = 0;
+		for (Emitter emitter : mEmitters) {
+			if (millisecondPositions != null && emitter instanceof NumberEmitter
+					&& ((NumberEmitter) emitter).mField == DatePatterns.MILLISECOND) {
+				millisecondPositions[index++] = position;
+			}
+			position = emitter.emit(fields, buffer, position);
+		}
+
+		return position;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private void computeFields(long millis, int[] fields) {
+		final int offset = mZoneOffsets.getOffset(millis);
+		final long local = millis + offset;
+
+		long days = local / DatePatterns.MILLIS_PER_DAY;
+		long millisOfDay = local % DatePatterns.MILLIS_PER_DAY;
+		if (millisOfDay < 0) {
+			days--;
+			millisOfDay += DatePatterns.MILLIS_PER_DAY;
+		}
+
+		// Civil date from days since the epoch, using 400 year eras starting on March 1st.
+		final long z = days + 719468;
+		final long era = (z >= 0 ? z : z - 146096) / 146097;
+		final long dayOfEra = z - era * 146097;
+		final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		final long dayOfMarchYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		final long shiftedMonth = (5 * dayOfMarchYear + 2) / 153;
+
+		final int day = (int) (dayOfMarchYear - (153 * shiftedMonth + 2) / 5 + 1);
+		final int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+		final int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+		int dayOfYear = DAYS_BEFORE_MONTH[month - 1] + day;
+		if (month > 2 && DatePatterns.isLeapYear(year)) {
+			dayOfYear++;
+		}
+
+		int dayOfWeek = (int) ((days + 4) % 7);
+		if (dayOfWeek < 0) {
+			dayOfWeek += 7;
+		}
+
+		final int time = (int) millisOfDay;
+
+		fields[DatePatterns.YEAR] = year;
+		fields[DatePatterns.MONTH] = month;
+		fields[DatePatterns.DAY_OF_MONTH] = day;
+		fields[DatePatterns.HOUR_OF_DAY] = time / 3600000;
+		fields[DatePatterns.MINUTE] = (time / 60000) % 60;
+		fields[DatePatterns.SECOND] = (time / 1000) % 60;
+		fields[DatePatterns.MILLISECOND] = time % 1000;
+		fields[DatePatterns.DAY_OF_WEEK] = dayOfWeek + 1;
+		fields[DatePatterns.DAY_OF_YEAR] = dayOfYear;
+		fields[DatePatterns.ZONE_OFFSET] = offset;
+	}
+
+	private static Emitter createEmitter(char c, int count, DateFormatSymbols symbols, Locale locale,
+			TimeZone timeZone) {
+		switch (c) {
+		case 'G':
+			return new TextEmitter(DatePatterns.YEAR, symbols.getEras(), true);
+		case 'y':
+			if (count == 2) {
+				return new TwoDigitYearEmitter();
+			}
+			return new NumberEmitter(DatePatterns.YEAR, count, 10);
+		case 'M':
+			// Android formats five or more letters with the narrow names.
+			if (count >= 5) {
+				return null;
+			}
+			if (count == 4) {
+				return new TextEmitter(DatePatterns.MONTH, symbols.getMonths(), false);
+			}
+			if (count == 3) {
+				return new TextEmitter(DatePatterns.MONTH, symbols.getShortMonths(), false);
+			}
+			return new NumberEmitter(DatePatterns.MONTH, count, 2);
+		case 'd':
+			return new NumberEmitter(DatePatterns.DAY_OF_MONTH, count, 2);
+		case 'D':
+			return new NumberEmitter(DatePatterns.DAY_OF_YEAR, count, 3);
+		case 'F':
+			return new DayOfWeekInMonthEmitter(count);
+		case 'E':
+			if (count >= 5) {
+				return null;
+			}
+			if (count == 4) {
+				return new TextEmitter(DatePatterns.DAY_OF_WEEK, symbols.getWeekdays(), false);
+			}
+			return new TextEmitter(DatePatterns.DAY_OF_WEEK, symbols.getShortWeekdays(), false);
+		case 'a':
+			return new TextEmitter(DatePatterns.HOUR_OF_DAY, symbols.getAmPmStrings(), true);
+		case 'H':
+			return new NumberEmitter(DatePatterns.HOUR_OF_DAY, count, 2);
+		case 'k':
+		case 'K':
+		case 'h':
+			return new HourEmitter(c, count);
+		case 'm':
+			return new NumberEmitter(DatePatterns.MINUTE, count, 2);
+		case 's':
+			return new NumberEmitter(DatePatterns.SECOND, count, 2);
+		case 'S':
+			return new NumberEmitter(DatePatterns.MILLISECOND, count, 3);
+		case 'Z':
+			// Android formats four letters as "GMT-08:00" and five as "-08:00".
+			if (count >= 4) {
+				return null;
+			}
+			return new Rfc822ZoneEmitter();
+		case 'z':
+			// Only zones with GMT rules, whose display name never switches to a daylight name.
+			if (!timeZone.hasSameRules(GMT)) {
+				return null;
+			}
+			return new LiteralEmitter(timeZone.getDisplayName(false, count >= 4 ? TimeZone.LONG
+					: TimeZone.SHORT, locale));
+		default:
+			return null;
+		}
+	}
+
+	private static int digitCount(int value) {
+		int digits = 1;
+		while (value >= 10) {
+			value /= 10;
+			digits++;
+		}
+		return digits;
+	}
+
+	static int writeNumber(int value, int minDigits, char[] buffer, int position) {
+		final int digits = Math.max(digitCount(value), minDigits);
+		final int end = position + digits;
+
+		for (int i = end - 1; i >= position; i--) {
+			buffer[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+
+		return end;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CLASSES
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final class Scratch {
+		final int[] fields = new int[DatePatterns.FIELD_COUNT];
+		final char[] chars;
+
+		Scratch(int maxLength) {
+			chars = new char[maxLength];
+		}
+	}
+
+	private static abstract class Emitter {
+		public abstract int getMaxLength();
+
+		public abstract int emit(int[] fields, char[] buffer, int position);
+	}
+
+	private static final class LiteralEmitter extends Emitter {
+		private final char[] mChars;
+
+		public LiteralEmitter(String literal) {
+			mChars = literal.toCharArray();
+		}
+
+		@Override
+		public int getMaxLength() {
+			return mChars.length;
+		}
+
+		@Override
+		public int emit(int[] fields, char[] buffer, int position) {
+			System.arraycopy(mChars, 0, buffer, position, mChars.length);
+			return position + mChars.length;
+		}
+	}
+
+	private static final class NumberEmitter extends Emitter {
+		private final int mField;
+		private final int mMinDigits;
+		private final int mMaxDigits;
+
+		public NumberEmitter(int field, int minDigits, int maxDigits) {
+			mField = field;
+			mMinDigits = minDigits;
+			mMaxDigits = maxDigits;
+		}
+
+		@Override
+		public int getMaxLength() {
+			return Math.max(mMinDigits, mMaxDigits);
+		}
+
+		@Override
+		public int emit(int[] fields, char[] buffer, int position) {
+			return writeNumber(fields[mField], mMinDigits, buffer, position);
+		}
+	}
+
+	private static final class TwoDigitYearEmitter extends Emitter {
+		@Override
+		public int getMaxLength() {
+			return 2;
+		}
+
+		@Override
+		public int emit(int[] fields, char[] buffer, int position) {
+			return writeNumber(fields[DatePatterns.YEAR] % 100, 2, buffer, position);
+		}
+	}
+
+	private static final class HourEmitter extends Emitter {
+		private final char mType;
+		private final int mMinDigits;
+
+		public HourEmitter(char type, int minDigits) {
+			mType = type;
+			mMinDigits = minDigits;
+		}
+
+		@Override
+		public int getMaxLength() {
+			return Math.max(mMinDigits, 2);
+		}
+
+		@Override
+		public int emit(int[] fields, char[] buffer, int position) {
+			int hour = fields[DatePatterns.HOUR_OF_DAY];
+
+			switch (mType) {
+			case 'k':
+				hour = hour == 0 ? 24 : hour;
+				break;
+			case 'K':
+				hour = hour % 12;
+				break;
+			case 'h':
+				hour = hour % 12 == 0 ? 12 : hour % 12;
+				break;
+			}
+
+			return writeNumber(hour, mMinDigits, buffer, position);
+		}
+	}
+
+	private static final class DayOfWeekInMonthEmitter extends Emitter {
+		private final int mMinDigits;
+
+		public DayOfWeekInMonthEmitter(int minDigits) {
+			mMinDigits = minDigits;
+		}
+
+		@Override
+		public int getMaxLength() {
+			return Math.max(mMinDigits, 1);
+		}
+
+		@Override
+		public int emit(int[] fields, char[] buffer, int position) {
+			return writeNumber((fields[DatePatterns.DAY_OF_MONTH] - 1) / 7 + 1, mMinDigits, buffer, position);
+		}
+	}
+
+	private static final class TextEmitter extends Emitter {
+		private final int mField;
+		private final char[][] mValues;
+		private final boolean mBinary;
+		private final int mMaxLength;
+
+		// Binary text fields are indexed by a flag derived from the field: the era (always AD
+		// past the cutover) and AM/PM. Other fields index the symbol array directly.
+		public TextEmitter(int field, String[] values, boolean binary) {
+			mField = field;
+			mBinary = binary;
+			mValues = new char[values.length][];
+
+			int maxLength = 0;
+			for (int i = 0; i < values.length; i++) {
+				mValues[i] = values[i] != null ? values[i].toCharArray() : new char[0];
+				maxLength = Math.max(maxLength, mValues[i].length);
+			}
+			mMaxLength = maxLength;
+		}
+
+		@Override
+		public int getMaxLength() {
+			return mMaxLength;
+		}
+
+		@Override
+		public int emit(int[] fields, char[] buffer, int position) {
+			final int index;
+			if (mBinary) {
+				index = mField == DatePatterns.HOUR_OF_DAY ? (fields[DatePatterns.HOUR_OF_DAY] >= 12 ? 1 : 0) : 1;
+			}
+			else if (mField == DatePatterns.MONTH) {
+				index = fields[DatePatterns.MONTH] - 1;
+			}
+			else {
+				index = fields[mField];
+			}
+
+			final char[] value = mValues[index];
+			System.arraycopy(value, 0, buffer, position, value.length);
+			return position + value.length;
+		}
+	}
+
+	private static final class Rfc822ZoneEmitter extends Emitter {
+		@Override
+		public int getMaxLength() {
+			return 5;
+		}
+
+		@Override
+		public int emit(int[] fields, char[] buffer, int position) {
+			int minutes = fields[DatePatterns.ZONE_OFFSET] / 60000;
+			if (minutes < 0) {
+				buffer[position++] = '-';
+				minutes = -minutes;
+			}
+			else {
+				buffer[position++] = '+';
+			}
+
+			return writeNumber((minutes / 60) * 100 + minutes % 60, 4, buffer, position);
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package com.michaelpardo.java.text;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU registry of shared, pooled formatters keyed by pattern, locale and time zone, so
+ * short-lived components don't pay the pattern and locale data setup on every instance. Lookups
+ * don't lock; only adding a formatter does, to evict the least recently used one.
+ */
+public final class DateFormatRegistry {
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CONSTANTS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final int DEFAULT_MAX_SIZE = 32;
+
+	private static final ConcurrentHashMap<Key, Entry> FORMATS = new ConcurrentHashMap<Key, Entry>();
+
+	// Guards insertion and eviction, so the size bound holds.
+	private static final Object LOCK = new Object();
+
+	// Orders entries by last use.
+	private static final AtomicLong CLOCK = new AtomicLong();
+
+	private static final AtomicLong HIT_COUNT = new AtomicLong();
+	private static final AtomicLong MISS_COUNT = new AtomicLong();
+
+	// Reused lookup key, so a hit doesn't allocate.
+	private static final ThreadLocal<Key> LOOKUP_KEY = new ThreadLocal<Key>() {
+		@Override
+		protected Key initialValue() {
+			return new Key();
+		}
+	};
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE MEMBERS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static volatile int sMaxSize = DEFAULT_MAX_SIZE;
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private DateFormatRegistry() {
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	public static ThreadSafeSimpleDateFormat get(String pattern) {
+		return get(pattern, Locale.getDefault(), TimeZone.getDefault());
+	}
+
+	public static ThreadSafeSimpleDateFormat get(String pattern, Locale locale, TimeZone timeZone) {
+		final Key lookupKey = LOOKUP_KEY.get().set(pattern, locale, timeZone);
+		final Entry entry = FORMATS.get(lookupKey);
+		lookupKey.set(null, null, null);
+
+		if (entry != null) {
+			entry.lastUsed = CLOCK.incrementAndGet();
+			HIT_COUNT.incrementAndGet();
+			return entry.format;
+		}
+		MISS_COUNT.incrementAndGet();
+
+		// Built outside the lock; if another thread got there first, keep its instance. The key
+		// keeps its own copy of the zone, since the caller's may change.
+		final ThreadSafeSimpleDateFormat format = new ThreadSafeSimpleDateFormat(pattern, locale, timeZone, true);
+		final Key key = new Key().set(pattern, locale, (TimeZone) timeZone.clone());
+
+		synchronized (LOCK) {
+			final Entry existing = FORMATS.get(key);
+			if (existing != null) {
+				return existing.format;
+			}
+
+			FORMATS.put(key, new Entry(format, CLOCK.incrementAndGet()));
+			trimToSize(sMaxSize);
+		}
+
+		return format;
+	}
+
+	public static void setMaxSize(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+
+		synchronized (LOCK) {
+			sMaxSize = maxSize;
+			trimToSize(maxSize);
+		}
+	}
+
+	public static int size() {
+		return FORMATS.size();
+	}
+
+	public static long getHitCount() {
+		return HIT_COUNT.get();
+	}
+
+	public static long getMissCount() {
+		return MISS_COUNT.get();
+	}
+
+	public static void clear() {
+		synchronized (LOCK) {
+			FORMATS.clear();
+			HIT_COUNT.set(0);
+			MISS_COUNT.set(0);
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	// Must hold LOCK. The registry is small, so finding the least recently used entry is a scan.
+	private static void trimToSize(int maxSize) {
+		while (FORMATS.size() > maxSize) {
+			Key eldestKey = null;
+			long eldestUse = Long.MAX_VALUE;
+
+			for (Map.Entry<Key, Entry> entry : FORMATS.entrySet()) {
+				if (entry.getValue().lastUsed < eldestUse) {
+					eldestKey = entry.getKey();
+					eldestUse = entry.getValue().lastUsed;
+				}
+			}
+
+			FORMATS.remove(eldestKey);
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CLASSES
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final class Entry {
+		final ThreadSafeSimpleDateFormat format;
+		volatile long lastUsed;
+
+		Entry(ThreadSafeSimpleDateFormat format, long lastUsed) {
+			this.format = format;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	// Mutable only so the per-thread lookup key can be reused; keys in the map never change.
+	private static final class Key {
+		private String mPattern;
+		private Locale mLocale;
+		private TimeZone mTimeZone;
+		private int mHashCode;
+
+		Key set(String pattern, Locale locale, TimeZone timeZone) {
+			mPattern = pattern;
+			mLocale = locale;
+			mTimeZone = timeZone;
+			mHashCode = pattern != null ? (pattern.hashCode() * 31 + locale.hashCode()) * 31
+					+ timeZone.getID().hashCode() : 0;
+
+			return this;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+
+			final Key other = (Key) o;
+			return mHashCode == other.mHashCode && mPattern.equals(other.mPattern) && mLocale.equals(other.mLocale)
+					&& mTimeZone.getID().equals(other.mTimeZone.getID()) && mTimeZone.hasSameRules(other.mTimeZone);
+		}
+
+		@Override
+		public int hashCode() {
+			return mHashCode;
+		}
+	}
+}
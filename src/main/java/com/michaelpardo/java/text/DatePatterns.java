@@ -0,0 +1,151 @@
+package com.michaelpardo.java.text;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
+import java.util.GregorianCalendar;
+
+/**
+ * Pattern tokenizing, calendar field indexes and Gregorian helpers shared by
+ * {@link CompiledDateFormat} and {@link FastDateParser}, so both engines accept the same patterns
+ * and agree on the range of dates they handle.
+ */
+final class DatePatterns {
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PUBLIC CONSTANTS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	// GregorianCalendar switches to Julian rules before 1582-10-15, and the day of year stays
+	// skewed for the rest of 1582. Stay clear of it, with a day of margin for zone offsets.
+	public static final long GREGORIAN_CUTOVER = -12212467200000L;
+
+	public static final long MILLIS_PER_DAY = 86400000L;
+
+	// Indexes into the int[] of calendar fields both engines work on.
+	public static final int YEAR = 0;
+	public static final int MONTH = 1;
+	public static final int DAY_OF_MONTH = 2;
+	public static final int HOUR_OF_DAY = 3;
+	public static final int MINUTE = 4;
+	public static final int SECOND = 5;
+	public static final int MILLISECOND = 6;
+	public static final int DAY_OF_WEEK = 7;
+	public static final int DAY_OF_YEAR = 8;
+	public static final int ZONE_OFFSET = 9;
+	public static final int FIELD_COUNT = 10;
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PUBLIC INTERFACES
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	public interface Visitor {
+		/**
+		 * Called for each literal character, with quotes already removed.
+		 */
+		public void onLiteral(char c);
+
+		/**
+		 * Called for each run of a pattern letter. Returning false stops tokenizing.
+		 */
+		public boolean onField(char c, int count);
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private DatePatterns() {
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns whether the format's fields can be computed with plain Gregorian arithmetic and
+	 * written or read as ASCII digits.
+	 */
+	public static boolean isSupported(SimpleDateFormat format) {
+		// Locales such as th_TH and ja_JP_JP get Buddhist and Japanese imperial calendars, which
+		// number years differently.
+		return format.getCalendar().getClass() == GregorianCalendar.class && usesAsciiDigits(format.getNumberFormat());
+	}
+
+	/**
+	 * Splits the pattern into literals and runs of pattern letters, the way SimpleDateFormat
+	 * does. Returns false if the visitor rejected a field.
+	 */
+	public static boolean tokenize(String pattern, Visitor visitor) {
+		final int length = pattern.length();
+		boolean inQuote = false;
+
+		for (int i = 0; i < length; i++) {
+			char c = pattern.charAt(i);
+
+			if (c == '\'') {
+				if (i + 1 < length && pattern.charAt(i + 1) == '\'') {
+					visitor.onLiteral('\'');
+					i++;
+				}
+				else {
+					inQuote = !inQuote;
+				}
+				continue;
+			}
+
+			if (inQuote || !isLetter(c)) {
+				visitor.onLiteral(c);
+				continue;
+			}
+
+			int count = 1;
+			while (i + 1 < length && pattern.charAt(i + 1) == c) {
+				count++;
+				i++;
+			}
+
+			if (!visitor.onField(c, count)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public static boolean isLeapYear(int year) {
+		return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static boolean usesAsciiDigits(NumberFormat numberFormat) {
+		if (!(numberFormat instanceof DecimalFormat)) {
+			return false;
+		}
+
+		final DecimalFormat decimalFormat = (DecimalFormat) numberFormat;
+		return decimalFormat.getDecimalFormatSymbols().getZeroDigit() == '0';
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+}
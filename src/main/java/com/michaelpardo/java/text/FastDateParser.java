@@ -0,0 +1,372 @@
+package com.michaelpardo.java.text;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.text.DateFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import com.michaelpardo.java.util.ZoneOffsetCache;
+
+/**
+ * Hand written parser for fixed layout patterns such as ISO-8601 ("yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+ * and RFC-1123 ("EEE, dd MMM yyyy HH:mm:ss zzz"). Scans a CharSequence by offset without
+ * allocating. Input that doesn't fit the layout exactly, or that SimpleDateFormat would resolve
+ * leniently, is rejected so the caller can fall back to SimpleDateFormat.
+ */
+final class FastDateParser {
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PUBLIC CONSTANTS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	public static final long FAILED = Long.MIN_VALUE;
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CONSTANTS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final int UNSET = Integer.MIN_VALUE;
+
+	private static final int[] DAYS_IN_MONTH = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE MEMBERS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private final ZoneOffsetCache mZoneOffsets;
+	private final Step[] mSteps;
+
+	private final ThreadLocal<int[]> mFields = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[DatePatterns.FIELD_COUNT];
+		}
+	};
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private FastDateParser(TimeZone timeZone, Step[] steps) {
+		mZoneOffsets = new ZoneOffsetCache(timeZone);
+		mSteps = steps;
+	}
+
+	/**
+	 * Returns a parser for the pattern of the given format, or null if the pattern isn't made
+	 * of fixed width fields only or the format doesn't use a plain GregorianCalendar.
+	 */
+	public static FastDateParser compile(SimpleDateFormat format) {
+		if (!DatePatterns.isSupported(format)) {
+			return null;
+		}
+
+		final DateFormatSymbols symbols = format.getDateFormatSymbols();
+		final List<Step> steps = new ArrayList<Step>();
+
+		final boolean compiled = DatePatterns.tokenize(format.toPattern(), new DatePatterns.Visitor() {
+			@Override
+			public void onLiteral(char c) {
+				steps.add(new LiteralStep(c));
+			}
+
+			@Override
+			public boolean onField(char c, int count) {
+				final Step step = createStep(c, count, symbols);
+				if (step == null) {
+					return false;
+				}
+
+				steps.add(step);
+				return true;
+			}
+		});
+
+		if (!compiled) {
+			return null;
+		}
+
+		return new FastDateParser((TimeZone) format.getTimeZone().clone(), steps.toArray(new Step[steps.size()]));
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Parses the whole range of the text, returning epoch millis or {@link #FAILED}.
+	 */
+	public long parse(CharSequence text, int start, int end) {
+		final int[] fields = mFields.get();
+		fields[DatePatterns.YEAR] = 1970;
+		fields[DatePatterns.MONTH] = 1;
+		fields[DatePatterns.DAY_OF_MONTH] = 1;
+		fields[DatePatterns.HOUR_OF_DAY] = 0;
+		fields[DatePatterns.MINUTE] = 0;
+		fields[DatePatterns.SECOND] = 0;
+		fields[DatePatterns.MILLISECOND] = 0;
+		fields[DatePatterns.DAY_OF_WEEK] = UNSET;
+		fields[DatePatterns.ZONE_OFFSET] = UNSET;
+
+		int position = start;
+		for (Step step : mSteps) {
+			position = step.parse(text, position, end, fields);
+			if (position < 0) {
+				return FAILED;
+			}
+		}
+
+		if (position != end) {
+			return FAILED;
+		}
+
+		return resolve(fields);
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private long resolve(int[] fields) {
+		final int year = fields[DatePatterns.YEAR];
+		final int month = fields[DatePatterns.MONTH];
+		final int day = fields[DatePatterns.DAY_OF_MONTH];
+
+		// Out of range values are resolved leniently by SimpleDateFormat; leave them to it.
+		if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) || fields[DatePatterns.HOUR_OF_DAY] > 23
+				|| fields[DatePatterns.MINUTE] > 59 || fields[DatePatterns.SECOND] > 59) {
+			return FAILED;
+		}
+
+		final long days = daysFromCivil(year, month, day);
+
+		if (fields[DatePatterns.DAY_OF_WEEK] != UNSET) {
+			int dayOfWeek = (int) ((days + 4) % 7);
+			if (dayOfWeek < 0) {
+				dayOfWeek += 7;
+			}
+			if (dayOfWeek + 1 != fields[DatePatterns.DAY_OF_WEEK]) {
+				return FAILED;
+			}
+		}
+
+		final long local = days * DatePatterns.MILLIS_PER_DAY + fields[DatePatterns.HOUR_OF_DAY] * 3600000L + fields[DatePatterns.MINUTE] * 60000L
+				+ fields[DatePatterns.SECOND] * 1000L + fields[DatePatterns.MILLISECOND];
+
+		final long millis;
+		if (fields[DatePatterns.ZONE_OFFSET] != UNSET) {
+			millis = local - fields[DatePatterns.ZONE_OFFSET];
+		}
+		else {
+			// Wall times near an offset transition may be skipped or repeated; Calendar has its
+			// own rules for those, so only resolve times with a stable offset around them.
+			final long guess = local - mZoneOffsets.getRawOffset();
+			final int offset = mZoneOffsets.getOffset(guess - DatePatterns.MILLIS_PER_DAY);
+			if (offset != mZoneOffsets.getOffset(guess + DatePatterns.MILLIS_PER_DAY)) {
+				return FAILED;
+			}
+			millis = local - offset;
+		}
+
+		return millis >= DatePatterns.GREGORIAN_CUTOVER ? millis : FAILED;
+	}
+
+	private static Step createStep(char c, int count, DateFormatSymbols symbols) {
+		switch (c) {
+		case 'y':
+			return count == 4 ? new NumberStep(DatePatterns.YEAR, 4) : null;
+		case 'M':
+			if (count == 2) {
+				return new NumberStep(DatePatterns.MONTH, 2);
+			}
+			if (count == 3) {
+				return new TextStep(DatePatterns.MONTH, symbols.getShortMonths(), 0, 1);
+			}
+			return null;
+		case 'd':
+			return count == 2 ? new NumberStep(DatePatterns.DAY_OF_MONTH, 2) : null;
+		case 'E':
+			return count <= 3 ? new TextStep(DatePatterns.DAY_OF_WEEK, symbols.getShortWeekdays(), 1, 0) : null;
+		case 'H':
+			return count == 2 ? new NumberStep(DatePatterns.HOUR_OF_DAY, 2) : null;
+		case 'm':
+			return count == 2 ? new NumberStep(DatePatterns.MINUTE, 2) : null;
+		case 's':
+			return count == 2 ? new NumberStep(DatePatterns.SECOND, 2) : null;
+		case 'S':
+			return count == 3 ? new NumberStep(DatePatterns.MILLISECOND, 3) : null;
+		case 'Z':
+			// Android reads four or more letters as "GMT-08:00" or "-08:00" offsets.
+			return count < 4 ? new Rfc822ZoneStep() : null;
+		case 'z':
+			return count < 4 ? new GmtZoneStep() : null;
+		default:
+			return null;
+		}
+	}
+
+	private static int daysInMonth(int year, int month) {
+		return month == 2 && DatePatterns.isLeapYear(year) ? 29 : DAYS_IN_MONTH[month - 1];
+	}
+
+	private static long daysFromCivil(int year, int month, int day) {
+		final long y = month <= 2 ? year - 1 : year;
+		final long era = (y >= 0 ? y : y - 399) / 400;
+		final long yearOfEra = y - era * 400;
+		final long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	private static int parseDigits(CharSequence text, int position, int count) {
+		int value = 0;
+		for (int i = position; i < position + count; i++) {
+			final char c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CLASSES
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static abstract class Step {
+		// Returns the position after the parsed text, or -1 if it doesn't match.
+		public abstract int parse(CharSequence text, int position, int end, int[] fields);
+	}
+
+	private static final class LiteralStep extends Step {
+		private final char mChar;
+
+		public LiteralStep(char c) {
+			mChar = c;
+		}
+
+		@Override
+		public int parse(CharSequence text, int position, int end, int[] fields) {
+			return position < end && text.charAt(position) == mChar ? position + 1 : -1;
+		}
+	}
+
+	private static final class NumberStep extends Step {
+		private final int mField;
+		private final int mDigits;
+
+		public NumberStep(int field, int digits) {
+			mField = field;
+			mDigits = digits;
+		}
+
+		@Override
+		public int parse(CharSequence text, int position, int end, int[] fields) {
+			if (position + mDigits > end) {
+				return -1;
+			}
+
+			final int value = parseDigits(text, position, mDigits);
+			if (value < 0) {
+				return -1;
+			}
+
+			fields[mField] = value;
+			return position + mDigits;
+		}
+	}
+
+	private static final class TextStep extends Step {
+		private final int mField;
+		private final String[] mValues;
+		private final int mFirstIndex;
+		private final int mValueOffset;
+
+		public TextStep(int field, String[] values, int firstIndex, int valueOffset) {
+			mField = field;
+			mValues = values;
+			mFirstIndex = firstIndex;
+			mValueOffset = valueOffset;
+		}
+
+		@Override
+		public int parse(CharSequence text, int position, int end, int[] fields) {
+			for (int i = mFirstIndex; i < mValues.length; i++) {
+				final String value = mValues[i];
+				final int length = value.length();
+				if (length == 0 || position + length > end) {
+					continue;
+				}
+
+				boolean matches = true;
+				for (int j = 0; j < length && matches; j++) {
+					matches = text.charAt(position + j) == value.charAt(j);
+				}
+
+				// Letters right after the match mean a longer name, such as a full month name.
+				if (matches && (position + length == end || !Character.isLetter(text.charAt(position + length)))) {
+					fields[mField] = i + mValueOffset;
+					return position + length;
+				}
+			}
+
+			return -1;
+		}
+	}
+
+	private static final class Rfc822ZoneStep extends Step {
+		@Override
+		public int parse(CharSequence text, int position, int end, int[] fields) {
+			if (position + 5 > end) {
+				return -1;
+			}
+
+			final char sign = text.charAt(position);
+			final int hours = parseDigits(text, position + 1, 2);
+			final int minutes = parseDigits(text, position + 3, 2);
+			if ((sign != '+' && sign != '-') || hours < 0 || hours > 23 || minutes < 0 || minutes > 59) {
+				return -1;
+			}
+
+			final int offset = (hours * 60 + minutes) * 60000;
+			fields[DatePatterns.ZONE_OFFSET] = sign == '-' ? -offset : offset;
+			return position + 5;
+		}
+	}
+
+	private static final class GmtZoneStep extends Step {
+		@Override
+		public int parse(CharSequence text, int position, int end, int[] fields) {
+			if (position + 3 > end || text.charAt(position) != 'G' || text.charAt(position + 1) != 'M'
+					|| text.charAt(position + 2) != 'T') {
+				return -1;
+			}
+
+			// Offsets following "GMT" are left to SimpleDateFormat.
+			if (position + 3 < end && (text.charAt(position + 3) == '+' || text.charAt(position + 3) == '-')) {
+				return -1;
+			}
+
+			fields[DatePatterns.ZONE_OFFSET] = 0;
+			return position + 3;
+		}
+	}
+}
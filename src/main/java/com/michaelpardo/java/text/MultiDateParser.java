@@ -0,0 +1,216 @@
+package com.michaelpardo.java.text;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Parses dates that may come in any of several patterns. Instead of trying each pattern and
+ * catching the ParseException, the shape of the input (its digit runs, letter runs and
+ * separators) is fingerprinted in one pass and only patterns producing the same shape are
+ * tried. Failure is reported with a return value, never an exception.
+ */
+public class MultiDateParser {
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CONSTANTS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static final int DIGIT_RUN = 0x10000;
+	private static final int LETTER_RUN = 0x20000;
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE MEMBERS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private final Candidate[] mCandidates;
+
+	private final ThreadLocal<long[]> mFingerprints = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[2];
+		}
+	};
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	public MultiDateParser(String... patterns) {
+		this(Arrays.asList(patterns), Locale.getDefault(), TimeZone.getDefault());
+	}
+
+	/**
+	 * Patterns are tried in the given order when several of them produce the same shape.
+	 */
+	public MultiDateParser(List<String> patterns, Locale locale, TimeZone timeZone) {
+		mCandidates = new Candidate[patterns.size()];
+
+		final long[] fingerprints = new long[2];
+		for (int i = 0; i < mCandidates.length; i++) {
+			final String pattern = patterns.get(i);
+			final ThreadSafeSimpleDateFormat format = DateFormatRegistry.get(pattern, locale, timeZone);
+
+			// Two samples: one where every numeric field has its widest common value, and one
+			// where they're all single digits. Patterns rendering both the same way have fixed
+			// width numbers and are matched on exact digit counts.
+			fingerprint(format.format(sampleDate(locale, timeZone, 2001, Calendar.NOVEMBER, 22, 22, 44, 55, 666)),
+					fingerprints);
+			final long exact = fingerprints[0];
+			final long collapsed = fingerprints[1];
+
+			fingerprint(format.format(sampleDate(locale, timeZone, 2001, Calendar.JANUARY, 2, 3, 4, 5, 6)),
+					fingerprints);
+			final boolean fixedWidth = fingerprints[0] == exact;
+
+			mCandidates[i] = new Candidate(pattern, format, fixedWidth, fixedWidth ? exact : collapsed);
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the parsed date, or null if the text doesn't match any of the patterns.
+	 */
+	public Date parse(String text) {
+		final long millis = parseMillis(text, Long.MIN_VALUE);
+		return millis != Long.MIN_VALUE ? new Date(millis) : null;
+	}
+
+	public long parseMillis(CharSequence text, long defValue) {
+		final long[] fingerprints = mFingerprints.get();
+		fingerprint(text, fingerprints);
+
+		for (Candidate candidate : mCandidates) {
+			if (candidate.matches(fingerprints)) {
+				final long millis = candidate.format.parseMillis(text, Long.MIN_VALUE);
+				if (millis != Long.MIN_VALUE) {
+					return millis;
+				}
+			}
+		}
+
+		return defValue;
+	}
+
+	/**
+	 * Returns the first pattern that parses the text, or null if none does.
+	 */
+	public String detectPattern(CharSequence text) {
+		final long[] fingerprints = mFingerprints.get();
+		fingerprint(text, fingerprints);
+
+		for (Candidate candidate : mCandidates) {
+			if (candidate.matches(fingerprints) && candidate.format.parseMillis(text, Long.MIN_VALUE) != Long.MIN_VALUE) {
+				return candidate.pattern;
+			}
+		}
+
+		return null;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static long sampleDate(Locale locale, TimeZone timeZone, int year, int month, int day, int hour,
+			int minute, int second, int millisecond) {
+
+		final Calendar calendar = Calendar.getInstance(timeZone, locale);
+		calendar.clear();
+		calendar.set(year, month, day, hour, minute, second);
+		calendar.set(Calendar.MILLISECOND, millisecond);
+
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * Hashes the shape of the text in one pass. Letter runs always collapse to a single token,
+	 * since names vary in length. The first fingerprint keeps the length of each digit run; the
+	 * second collapses digit runs too, for patterns with variable width numbers.
+	 */
+	private static void fingerprint(CharSequence text, long[] fingerprints) {
+		long exact = FNV_OFFSET_BASIS;
+		long collapsed = FNV_OFFSET_BASIS;
+
+		final int length = text.length();
+		int i = 0;
+		while (i < length) {
+			final char c = text.charAt(i);
+			final int token;
+
+			if (c >= '0' && c <= '9') {
+				final int start = i;
+				while (i < length && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+					i++;
+				}
+				exact = (exact ^ (DIGIT_RUN | (i - start))) * FNV_PRIME;
+				collapsed = (collapsed ^ DIGIT_RUN) * FNV_PRIME;
+				continue;
+			}
+
+			if (Character.isLetter(c)) {
+				while (i < length && Character.isLetter(text.charAt(i))) {
+					i++;
+				}
+				token = LETTER_RUN;
+			}
+			else {
+				i++;
+				// The sign of a zone offset depends on the zone, not the pattern.
+				token = c == '+' ? '-' : c;
+			}
+
+			exact = (exact ^ token) * FNV_PRIME;
+			collapsed = (collapsed ^ token) * FNV_PRIME;
+		}
+
+		fingerprints[0] = exact;
+		fingerprints[1] = collapsed;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CLASSES
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final class Candidate {
+		final String pattern;
+		final ThreadSafeSimpleDateFormat format;
+		final boolean fixedWidth;
+		final long fingerprint;
+
+		Candidate(String pattern, ThreadSafeSimpleDateFormat format, boolean fixedWidth, long fingerprint) {
+			this.pattern = pattern;
+			this.format = format;
+			this.fixedWidth = fixedWidth;
+			this.fingerprint = fingerprint;
+		}
+
+		boolean matches(long[] fingerprints) {
+			return fingerprint == (fixedWidth ? fingerprints[0] : fingerprints[1]);
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.michaelpardo.java.text;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+import com.michaelpardo.java.util.ZoneOffsetCache;
+
+/**
+ * Formats "5 min ago" style labels. A (now, then) pair is bucketed and each bucket's label is
+ * built once and cached, so binding list rows doesn't allocate strings. Templates use "%d" for
+ * the count.
+ */
+public class RelativeTimeFormatter {
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PUBLIC CONSTANTS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	public static final String DEFAULT_JUST_NOW = "just now";
+	public static final String DEFAULT_MINUTES_AGO = "%d min ago";
+	public static final String DEFAULT_HOURS_AGO = "%d hr ago";
+	public static final String DEFAULT_YESTERDAY = "yesterday";
+	public static final String DEFAULT_DAYS_AGO = "%d days ago";
+	public static final String DEFAULT_DATE_PATTERN = "MMM d, yyyy";
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CONSTANTS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final long MILLIS_PER_MINUTE = 60000L;
+	private static final long MILLIS_PER_HOUR = 3600000L;
+	private static final long MILLIS_PER_DAY = 86400000L;
+
+	private static final long DEFAULT_TICK = MILLIS_PER_MINUTE / 4;
+
+	private static final int DATE_CACHE_SIZE = 64;
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE MEMBERS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private final String mJustNow;
+	private final String mMinutesAgo;
+	private final String mHoursAgo;
+	private final String mYesterday;
+	private final String mDaysAgo;
+
+	private final ThreadSafeSimpleDateFormat mDateFormat;
+	private final ZoneOffsetCache mZoneOffsets;
+
+	// Labels are filled lazily. Racing threads build equal interned strings, so no locking.
+	private final String[] mMinuteLabels = new String[60];
+	// A day is 25 hours long when clocks are set back.
+	private final String[] mHourLabels = new String[25];
+	private final String[] mDayLabels = new String[7];
+	private final DateLabel[] mDateLabels = new DateLabel[DATE_CACHE_SIZE];
+
+	private final long mTick;
+	private volatile long mNow;
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	public RelativeTimeFormatter() {
+		this(DEFAULT_JUST_NOW, DEFAULT_MINUTES_AGO, DEFAULT_HOURS_AGO, DEFAULT_YESTERDAY, DEFAULT_DAYS_AGO,
+				DEFAULT_DATE_PATTERN, Locale.getDefault(), TimeZone.getDefault(), DEFAULT_TICK);
+	}
+
+	/**
+	 * Labels older than a week use the date pattern, which is cached per day and so shouldn't
+	 * show the time. The current time is read from the clock at most once per tick, so every row
+	 * bound within a tick is labelled against the same "now".
+	 */
+	public RelativeTimeFormatter(String justNow, String minutesAgo, String hoursAgo, String yesterday,
+			String daysAgo, String datePattern, Locale locale, TimeZone timeZone, long tick) {
+
+		mJustNow = justNow.intern();
+		mMinutesAgo = minutesAgo;
+		mHoursAgo = hoursAgo;
+		mYesterday = yesterday.intern();
+		mDaysAgo = daysAgo;
+
+		mDateFormat = DateFormatRegistry.get(datePattern, locale, timeZone);
+		mZoneOffsets = new ZoneOffsetCache(timeZone);
+		mTick = tick;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	public String format(long then) {
+		return format(getNow(), then);
+	}
+
+	public String format(long now, long then) {
+		final long elapsed = now - then;
+
+		if (elapsed < MILLIS_PER_MINUTE) {
+			return mJustNow;
+		}
+		if (elapsed < MILLIS_PER_HOUR) {
+			return label(mMinuteLabels, mMinutesAgo, (int) (elapsed / MILLIS_PER_MINUTE));
+		}
+
+		// When clocks are set back, "then" can fall on a later local day than "now".
+		final long days = Math.max(0, localDay(now) - localDay(then));
+
+		if (days == 0) {
+			return label(mHourLabels, mHoursAgo, (int) Math.min(elapsed / MILLIS_PER_HOUR, mHourLabels.length - 1));
+		}
+		if (days == 1) {
+			return mYesterday;
+		}
+		if (days < 7) {
+			return label(mDayLabels, mDaysAgo, (int) days);
+		}
+
+		return dateLabel(localDay(then), then);
+	}
+
+	/**
+	 * Returns the "now" used by {@link #format(long)}, refreshing it if a tick has passed.
+	 */
+	public long getNow() {
+		final long current = System.currentTimeMillis();
+		final long now = mNow;
+
+		if (current - now >= mTick || current < now) {
+			mNow = current;
+			return current;
+		}
+
+		return now;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private long localDay(long millis) {
+		final long local = mZoneOffsets.toLocal(millis);
+		final long day = local / MILLIS_PER_DAY;
+
+		return local % MILLIS_PER_DAY < 0 ? day - 1 : day;
+	}
+
+	private static String label(String[] labels, String template, int count) {
+		String label = labels[count];
+		if (label == null) {
+			label = template.replace("%d", Integer.toString(count)).intern();
+			labels[count] = label;
+		}
+
+		return label;
+	}
+
+	private String dateLabel(long day, long then) {
+		final int index = (int) (day & (DATE_CACHE_SIZE - 1));
+
+		DateLabel label = mDateLabels[index];
+		if (label == null || label.day != day) {
+			label = new DateLabel(day, mDateFormat.format(then).intern());
+			mDateLabels[index] = label;
+		}
+
+		return label.text;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CLASSES
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final class DateLabel {
+		final long day;
+		final String text;
+
+		DateLabel(long day, String text) {
+			this.day = day;
+			this.text = text;
+		}
+	}
+}
@@ -16,23 +16,201 @@ package com.michaelpardo.java.text;
  * limitations under the License.
  */
 
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.ParseException;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 
 public class ThreadSafeSimpleDateFormat {
-	private DateFormat mDateFormat;
+	private final DateFormat mDateFormat;
+	private final ThreadLocal<DateFormat> mDateFormats;
+	private final CompiledDateFormat mCompiledFormat;
+	private final FastDateParser mFastParser;
 
 	public ThreadSafeSimpleDateFormat(String format) {
-		mDateFormat = new SimpleDateFormat(format);
+		this(format, false);
 	}
 
-	public synchronized String format(Date date) {
-		return mDateFormat.format(date);
+	/**
+	 * In pooled mode every thread formats with its own copy of the underlying
+	 * SimpleDateFormat instead of queuing on a single shared lock.
+	 */
+	public ThreadSafeSimpleDateFormat(String format, boolean pooled) {
+		this(format, Locale.getDefault(), TimeZone.getDefault(), pooled);
 	}
 
-	public synchronized Date parse(String string) throws ParseException {
-		return mDateFormat.parse(string);
+	public ThreadSafeSimpleDateFormat(String format, Locale locale, TimeZone timeZone) {
+		this(format, locale, timeZone, false);
+	}
+
+	public ThreadSafeSimpleDateFormat(String format, Locale locale, TimeZone timeZone, boolean pooled) {
+		final SimpleDateFormat dateFormat = new SimpleDateFormat(format, locale);
+		dateFormat.setTimeZone((TimeZone) timeZone.clone());
+
+		mDateFormat = dateFormat;
+		mCompiledFormat = CompiledDateFormat.compile(dateFormat, locale);
+		mFastParser = FastDateParser.compile(dateFormat);
+
+		if (pooled) {
+			mDateFormats = new ThreadLocal<DateFormat>() {
+				@Override
+				protected DateFormat initialValue() {
+					return (DateFormat) mDateFormat.clone();
+				}
+			};
+		}
+		else {
+			mDateFormats = null;
+		}
+	}
+
+	public boolean isPooled() {
+		return mDateFormats != null;
+	}
+
+	public boolean isCompiled() {
+		return mCompiledFormat != null;
+	}
+
+	public String format(Date date) {
+		return format(date.getTime());
+	}
+
+	public String format(long millis) {
+		if (mCompiledFormat != null && mCompiledFormat.canFormat(millis)) {
+			return mCompiledFormat.format(millis);
+		}
+
+		return formatDate(new Date(millis));
+	}
+
+	public void format(long millis, StringBuilder builder) {
+		if (mCompiledFormat != null && mCompiledFormat.canFormat(millis)) {
+			mCompiledFormat.format(millis, builder);
+		}
+		else {
+			builder.append(formatDate(new Date(millis)));
+		}
+	}
+
+	public void format(long millis, Appendable appendable) throws IOException {
+		if (mCompiledFormat != null && mCompiledFormat.canFormat(millis)) {
+			mCompiledFormat.format(millis, appendable);
+		}
+		else {
+			appendable.append(formatDate(new Date(millis)));
+		}
+	}
+
+	/**
+	 * Writes the formatted value into the buffer and returns the offset just past the last
+	 * character written. Compiled formats never write more than {@link #getMaxLength()} chars.
+	 */
+	public int format(long millis, char[] buffer, int offset) {
+		if (mCompiledFormat != null && mCompiledFormat.canFormat(millis)) {
+			return mCompiledFormat.format(millis, buffer, offset);
+		}
+
+		final String formatted = formatDate(new Date(millis));
+		formatted.getChars(0, formatted.length(), buffer, offset);
+
+		return offset + formatted.length();
+	}
+
+	/**
+	 * Returns the longest output of the compiled format, or -1 if the pattern isn't compiled.
+	 */
+	public int getMaxLength() {
+		return mCompiledFormat != null ? mCompiledFormat.getMaxLength() : -1;
+	}
+
+	public Date parse(String string) throws ParseException {
+		if (mFastParser != null) {
+			final long millis = mFastParser.parse(string, 0, string.length());
+			if (millis != FastDateParser.FAILED) {
+				return new Date(millis);
+			}
+		}
+
+		return parseDate(string);
+	}
+
+	/**
+	 * Parses the text to epoch millis. Fixed layout patterns such as ISO-8601 are scanned in
+	 * place without copying the text; anything else goes through SimpleDateFormat.
+	 */
+	public long parseMillis(CharSequence text) throws ParseException {
+		if (mFastParser != null) {
+			final long millis = mFastParser.parse(text, 0, text.length());
+			if (millis != FastDateParser.FAILED) {
+				return millis;
+			}
+		}
+
+		return parseDate(text.toString()).getTime();
+	}
+
+	/**
+	 * Parses the whole text without throwing, returning defValue if it isn't a valid date.
+	 */
+	public long parseMillis(CharSequence text, long defValue) {
+		if (mFastParser != null) {
+			final long millis = mFastParser.parse(text, 0, text.length());
+			if (millis != FastDateParser.FAILED) {
+				return millis;
+			}
+		}
+
+		final String string = text.toString();
+		final ParsePosition position = new ParsePosition(0);
+		final Date date = parse(string, position);
+
+		return date != null && position.getIndex() == string.length() ? date.getTime() : defValue;
+	}
+
+	public Date parse(String string, ParsePosition position) {
+		if (mFastParser != null) {
+			final long millis = mFastParser.parse(string, position.getIndex(), string.length());
+			if (millis != FastDateParser.FAILED) {
+				position.setIndex(string.length());
+				return new Date(millis);
+			}
+		}
+
+		if (mDateFormats != null) {
+			return mDateFormats.get().parse(string, position);
+		}
+
+		synchronized (mDateFormat) {
+			return mDateFormat.parse(string, position);
+		}
+	}
+
+	CompiledDateFormat getCompiledFormat() {
+		return mCompiledFormat;
+	}
+
+	private Date parseDate(String string) throws ParseException {
+		if (mDateFormats != null) {
+			return mDateFormats.get().parse(string);
+		}
+
+		synchronized (mDateFormat) {
+			return mDateFormat.parse(string);
+		}
+	}
+
+	private String formatDate(Date date) {
+		if (mDateFormats != null) {
+			return mDateFormats.get().format(date);
+		}
+
+		synchronized (mDateFormat) {
+			return mDateFormat.format(date);
+		}
 	}
 }
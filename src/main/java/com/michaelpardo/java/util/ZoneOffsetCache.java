@@ -0,0 +1,247 @@
+package com.michaelpardo.java.util;
+
+/*
+ * Copyright (C) 2010 Michael Pardo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Precomputed offset transitions of a TimeZone over a window of years, so converting UTC millis
+ * to local time is a binary search instead of a TimeZone.getOffset call. The window slides to
+ * follow the instants being converted; lookups outside it go to the TimeZone directly. Building a
+ * table costs a few hundred getOffset calls, so an instance only builds one after that many
+ * lookups, and built tables are shared between instances for the same zone.
+ */
+public final class ZoneOffsetCache {
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CONSTANTS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final long MILLIS_PER_DAY = 86400000L;
+	private static final long MILLIS_PER_YEAR = 365 * MILLIS_PER_DAY;
+
+	private static final int DEFAULT_WINDOW_YEARS = 4;
+
+	// Offsets are sampled every few hours and transitions located by bisection. Zones don't
+	// change offset twice within this span.
+	private static final long SAMPLE_INTERVAL = 6 * 3600000L;
+
+	// Number of lookups outside the window before it's rebuilt around the latest one.
+	private static final int MISSES_BEFORE_SLIDE = 64;
+
+	// Number of lookups answered by the TimeZone before the first table is built, so short-lived
+	// instances don't pay for one.
+	private static final int MISSES_BEFORE_BUILD = 256;
+
+	// Latest table built for each zone ID.
+	private static final ConcurrentHashMap<String, Table> SHARED_TABLES = new ConcurrentHashMap<String, Table>();
+
+	// Keeps window bounds from overflowing.
+	private static final long MIN_WINDOW_CENTER = Long.MIN_VALUE / 2;
+	private static final long MAX_WINDOW_CENTER = Long.MAX_VALUE / 2;
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE MEMBERS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private final TimeZone mTimeZone;
+	private final long mWindowLength;
+	private final AtomicInteger mMisses = new AtomicInteger();
+
+	private volatile Table mTable;
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	public ZoneOffsetCache(TimeZone timeZone) {
+		this(timeZone, DEFAULT_WINDOW_YEARS);
+	}
+
+	public ZoneOffsetCache(TimeZone timeZone, int windowYears) {
+		if (windowYears <= 0) {
+			throw new IllegalArgumentException("windowYears <= 0");
+		}
+
+		mTimeZone = (TimeZone) timeZone.clone();
+		mWindowLength = windowYears * MILLIS_PER_YEAR;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	public TimeZone getTimeZone() {
+		return (TimeZone) mTimeZone.clone();
+	}
+
+	public int getRawOffset() {
+		return mTimeZone.getRawOffset();
+	}
+
+	/**
+	 * Returns the offset from UTC at the given instant, like {@link TimeZone#getOffset(long)}.
+	 */
+	public int getOffset(long millis) {
+		Table table = mTable;
+
+		if (table == null || !table.contains(millis)) {
+			table = getSharedTable(millis);
+			if (table != null) {
+				mTable = table;
+				mMisses.set(0);
+			}
+			else if (mMisses.incrementAndGet() < (mTable != null ? MISSES_BEFORE_SLIDE : MISSES_BEFORE_BUILD)
+					|| millis < MIN_WINDOW_CENTER || millis > MAX_WINDOW_CENTER) {
+				return mTimeZone.getOffset(millis);
+			}
+			else {
+				table = build(millis);
+			}
+		}
+
+		return table.getOffset(millis);
+	}
+
+	public long toLocal(long millis) {
+		return millis + getOffset(millis);
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private Table getSharedTable(long millis) {
+		final Table table = SHARED_TABLES.get(mTimeZone.getID());
+		if (table == null || !table.contains(millis) || !table.timeZone.hasSameRules(mTimeZone)) {
+			return null;
+		}
+
+		return table;
+	}
+
+	private Table build(long millis) {
+		final long start = millis - mWindowLength / 2;
+		final long end = start + mWindowLength;
+
+		long[] transitions = new long[8];
+		int[] offsets = new int[9];
+		int count = 0;
+
+		long time = start;
+		int offset = mTimeZone.getOffset(time);
+		offsets[0] = offset;
+
+		while (time < end) {
+			final long next = Math.min(time + SAMPLE_INTERVAL, end);
+			final int nextOffset = mTimeZone.getOffset(next);
+
+			if (nextOffset != offset) {
+				// Find the first millisecond with the new offset.
+				long low = time;
+				long high = next;
+				while (high - low > 1) {
+					final long middle = low + (high - low) / 2;
+					if (mTimeZone.getOffset(middle) == offset) {
+						low = middle;
+					}
+					else {
+						high = middle;
+					}
+				}
+
+				if (count == transitions.length) {
+					transitions = grow(transitions);
+					offsets = grow(offsets);
+				}
+
+				transitions[count] = high;
+				offsets[++count] = nextOffset;
+				offset = nextOffset;
+			}
+
+			time = next;
+		}
+
+		final Table table = new Table(mTimeZone, start, end, transitions, offsets, count);
+		mTable = table;
+		mMisses.set(0);
+		SHARED_TABLES.put(mTimeZone.getID(), table);
+
+		return table;
+	}
+
+	private static long[] grow(long[] array) {
+		final long[] grown = new long[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static int[] grow(int[] array) {
+		final int[] grown = new int[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////
+	// PRIVATE CLASSES
+	//////////////////////////////////////////////////////////////////////////////////////
+
+	private static final class Table {
+		// The zone the table was built from, never modified.
+		final TimeZone timeZone;
+		final long start;
+		final long end;
+
+		// offsets[i + 1] applies from transitions[i] on; offsets[0] applies before the first.
+		final long[] transitions;
+		final int[] offsets;
+		final int count;
+
+		Table(TimeZone timeZone, long start, long end, long[] transitions, int[] offsets, int count) {
+			this.timeZone = timeZone;
+			this.start = start;
+			this.end = end;
+			this.transitions = transitions;
+			this.offsets = offsets;
+			this.count = count;
+		}
+
+		boolean contains(long millis) {
+			return millis >= start && millis < end;
+		}
+
+		int getOffset(long millis) {
+			int low = 0;
+			int high = count;
+
+			// Number of transitions at or before the instant.
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (transitions[middle] <= millis) {
+					low = middle + 1;
+				}
+				else {
+					high = middle;
+				}
+			}
+
+			return offsets[low];
+		}
+	}
+}